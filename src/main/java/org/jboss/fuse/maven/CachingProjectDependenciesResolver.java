@@ -0,0 +1,147 @@
+package org.jboss.fuse.maven;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.maven.project.DependencyResolutionException;
+import org.apache.maven.project.DependencyResolutionRequest;
+import org.apache.maven.project.DependencyResolutionResult;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.ProjectDependenciesResolver;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.graph.Dependency;
+import org.eclipse.aether.graph.DependencyNode;
+import org.eclipse.aether.resolution.ArtifactResult;
+import org.eclipse.aether.resolution.DependencyRequest;
+import org.eclipse.sisu.Priority;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ProjectDependenciesResolver} which skips the dependency collection when the
+ * {@link DependencyGraphCache} has a graph for the project.  When the cache is not enabled,
+ * all requests are delegated to the default resolver.
+ */
+@Named
+@Singleton
+@Priority(10)
+public class CachingProjectDependenciesResolver implements ProjectDependenciesResolver {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final RepositorySystem repoSystem;
+    private final List<ProjectDependenciesResolver> resolvers;
+    private volatile ProjectDependenciesResolver delegate;
+
+    @Inject
+    public CachingProjectDependenciesResolver(RepositorySystem repoSystem, List<ProjectDependenciesResolver> resolvers) {
+        this.repoSystem = repoSystem;
+        this.resolvers = resolvers;
+    }
+
+    @Override
+    public DependencyResolutionResult resolve(DependencyResolutionRequest request) throws DependencyResolutionException {
+        MavenProject project = request.getMavenProject();
+        RepositorySystemSession session = request.getRepositorySession();
+        Object cache = session != null ? session.getData().get(DependencyGraphCache.class) : null;
+        if (!(cache instanceof DependencyGraphCache) || project == null) {
+            return getDelegate().resolve(request);
+        }
+        DependencyGraphCache graphCache = (DependencyGraphCache) cache;
+        String key = graphCache.getKey(project);
+        DependencyNode root = graphCache.load(key, session, project);
+        if (root == null) {
+            DependencyResolutionResult result = getDelegate().resolve(request);
+            if (result.getCollectionErrors().isEmpty()) {
+                graphCache.store(key, result.getDependencyGraph());
+            }
+            return result;
+        }
+        logger.debug("Using cached dependency graph for {}", project);
+        Result result = new Result(root);
+        DependencyRequest depRequest = new DependencyRequest(root, request.getResolutionFilter());
+        try {
+            process(result, repoSystem.resolveDependencies(session, depRequest).getArtifactResults());
+        } catch (org.eclipse.aether.resolution.DependencyResolutionException e) {
+            process(result, e.getResult().getArtifactResults());
+            throw new DependencyResolutionException(result, "Could not resolve dependencies for project "
+                    + project.getId() + ": " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    private ProjectDependenciesResolver getDelegate() {
+        if (delegate == null) {
+            delegate = resolvers.stream()
+                    .filter(r -> !(r instanceof CachingProjectDependenciesResolver))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalStateException("No default ProjectDependenciesResolver"));
+        }
+        return delegate;
+    }
+
+    private void process(Result result, Collection<ArtifactResult> results) {
+        for (ArtifactResult ar : results) {
+            DependencyNode node = ar.getRequest().getDependencyNode();
+            if (ar.isResolved()) {
+                result.dependencies.add(node.getDependency());
+                result.resolvedDependencies.add(node.getDependency());
+            } else {
+                result.dependencies.add(node.getDependency());
+                result.unresolvedDependencies.add(node.getDependency());
+                result.resolutionErrors.put(node.getDependency(), ar.getExceptions());
+            }
+        }
+    }
+
+    static class Result implements DependencyResolutionResult {
+        final DependencyNode root;
+        final List<Dependency> dependencies = new ArrayList<>();
+        final List<Dependency> resolvedDependencies = new ArrayList<>();
+        final List<Dependency> unresolvedDependencies = new ArrayList<>();
+        final Map<Dependency, List<Exception>> resolutionErrors = new HashMap<>();
+
+        Result(DependencyNode root) {
+            this.root = root;
+        }
+
+        @Override
+        public DependencyNode getDependencyGraph() {
+            return root;
+        }
+
+        @Override
+        public List<Dependency> getDependencies() {
+            return dependencies;
+        }
+
+        @Override
+        public List<Dependency> getResolvedDependencies() {
+            return resolvedDependencies;
+        }
+
+        @Override
+        public List<Dependency> getUnresolvedDependencies() {
+            return unresolvedDependencies;
+        }
+
+        @Override
+        public List<Exception> getCollectionErrors() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<Exception> getResolutionErrors(Dependency dependency) {
+            return resolutionErrors.getOrDefault(dependency, Collections.emptyList());
+        }
+    }
+}
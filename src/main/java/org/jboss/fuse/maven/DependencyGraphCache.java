@@ -0,0 +1,305 @@
+package org.jboss.fuse.maven;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.maven.execution.ProjectDependencyGraph;
+import org.apache.maven.model.Profile;
+import org.apache.maven.model.io.xpp3.MavenXpp3Writer;
+import org.apache.maven.project.MavenProject;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.graph.DefaultDependencyNode;
+import org.eclipse.aether.graph.Dependency;
+import org.eclipse.aether.graph.DependencyNode;
+import org.eclipse.aether.repository.Authentication;
+import org.eclipse.aether.repository.Proxy;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent cache of collected dependency graphs.
+ *
+ * Graphs are keyed by the trimmed model of the project, of its parents and of its upstream
+ * reactor projects, along with the exclusions, the active profiles, the remote repositories
+ * and the user properties, so that changing a module only invalidates the graphs of the
+ * projects depending on it.  The models are hashed once, when the cache is created, so that
+ * the keys do not depend on whether the trimmed poms have been written yet.  External
+ * snapshots are not tracked, so the cache is only enabled on demand.
+ *
+ * Only the collected graph is cached, along with the artifact properties and the
+ * repositories of each node: artifacts are still resolved.  As the exclusions are not applied
+ * to cached graphs, their selectors are not hit either, so selector usage is only meaningful
+ * when {@link #hasHits()} returns <code>false</code>.
+ */
+public class DependencyGraphCache {
+
+    private static final String HEADER = "# maven-exclude-extension dependency graph v2";
+    private static final String REPOSITORY = "@";
+    private static final String NONE = "-";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Path directory;
+    private final ProjectDependencyGraph graph;
+    private final Set<MavenProject> reactor;
+    private final String sessionKey;
+    private final Map<String, String> modelHashes = new ConcurrentHashMap<>();
+    private final AtomicBoolean hits = new AtomicBoolean();
+
+    public DependencyGraphCache(Path directory, ExcludePattern exclusions, Collection<MavenProject> projects,
+                                ProjectDependencyGraph graph, Properties userProperties) {
+        this.directory = directory;
+        this.graph = graph;
+        this.reactor = new HashSet<>(projects);
+        StringBuilder sb = new StringBuilder();
+        sb.append("exclusions ").append(exclusions.getId()).append('\n');
+        TreeSet<String> lines = new TreeSet<>();
+        for (String name : userProperties.stringPropertyNames()) {
+            lines.add("property " + name + "=" + userProperties.getProperty(name));
+        }
+        lines.forEach(l -> sb.append(l).append('\n'));
+        this.sessionKey = sb.toString();
+        // hash the models as they are once trimmed, before the build changes anything
+        projects.parallelStream().forEach(this::modelHash);
+    }
+
+    /**
+     * Compute the cache key for the given project.
+     */
+    public String getKey(MavenProject project) {
+        StringBuilder sb = new StringBuilder(sessionKey);
+        sb.append("root ").append(project.getId()).append(' ').append(modelHash(project)).append('\n');
+        for (MavenProject parent = project.getParent(); parent != null; parent = parent.getParent()) {
+            sb.append("parent ").append(parent.getId()).append(' ').append(modelHash(parent)).append('\n');
+        }
+        if (graph != null) {
+            TreeSet<String> upstreams = new TreeSet<>();
+            for (MavenProject upstream : graph.getUpstreamProjects(project, true)) {
+                // excluded projects are not built, nor depended upon anymore
+                if (reactor.contains(upstream)) {
+                    upstreams.add("upstream " + upstream.getId() + " " + modelHash(upstream));
+                }
+            }
+            upstreams.forEach(l -> sb.append(l).append('\n'));
+        }
+        for (Profile profile : project.getActiveProfiles()) {
+            sb.append("profile ").append(profile.getId()).append('\n');
+        }
+        for (RemoteRepository repository : getRepositories(project)) {
+            sb.append("repository ").append(repository.getId()).append(' ').append(repository.getUrl()).append('\n');
+        }
+        return PomExcluder.hash(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String modelHash(MavenProject project) {
+        return modelHashes.computeIfAbsent(project.getId(), id -> {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (Writer writer = new OutputStreamWriter(baos, StandardCharsets.UTF_8)) {
+                new MavenXpp3Writer().write(writer, project.getModel());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return PomExcluder.hash(baos.toByteArray());
+        });
+    }
+
+    /**
+     * Load the cached graph for the given key, or return <code>null</code> if there is none.
+     */
+    public DependencyNode load(String key, RepositorySystemSession session, MavenProject project) {
+        Path file = directory.resolve(key + ".graph");
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                return null;
+            }
+            List<RemoteRepository> repositories = new ArrayList<>();
+            Map<String, List<RemoteRepository>> repositoryLists = new HashMap<>();
+            List<DefaultDependencyNode> stack = new ArrayList<>();
+            DefaultDependencyNode root = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", -1);
+                if (REPOSITORY.equals(parts[0])) {
+                    repositories.add(getRepository(session, project, decode(parts[2]), decode(parts[3])));
+                    continue;
+                }
+                int depth = Integer.parseInt(parts[0]);
+                String[] coords = parts[1].split(":", -1);
+                Artifact artifact = new DefaultArtifact(coords[0], coords[1], coords[3], coords[2], coords[4],
+                        decodeProperties(parts[5]), (File) null);
+                DefaultDependencyNode node;
+                if (depth == 0) {
+                    node = new DefaultDependencyNode(artifact);
+                    root = node;
+                } else {
+                    node = new DefaultDependencyNode(new Dependency(artifact, parts[2], Boolean.parseBoolean(parts[3])));
+                    stack.get(depth - 1).getChildren().add(node);
+                }
+                node.setRepositories(repositoryLists.computeIfAbsent(parts[4], r -> getRepositories(repositories, r)));
+                node.setRequestContext("project");
+                while (stack.size() > depth) {
+                    stack.remove(stack.size() - 1);
+                }
+                stack.add(node);
+            }
+            if (root != null) {
+                hits.set(true);
+            }
+            return root;
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Ignoring invalid cached dependency graph {}: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Check whether at least one graph has been loaded from the cache.
+     */
+    public boolean hasHits() {
+        return hits.get();
+    }
+
+    private static List<RemoteRepository> getRepositories(List<RemoteRepository> repositories, String indexes) {
+        if (NONE.equals(indexes)) {
+            return Collections.emptyList();
+        }
+        List<RemoteRepository> list = new ArrayList<>();
+        for (String index : indexes.split(",")) {
+            list.add(repositories.get(Integer.parseInt(index)));
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Rebuild a stored repository, reusing the project repository when it is the same one, so that
+     * its authentication and proxy are kept, or applying the session ones otherwise.
+     */
+    private static RemoteRepository getRepository(RepositorySystemSession session, MavenProject project,
+                                                  String id, String url) {
+        for (RemoteRepository repository : getRepositories(project)) {
+            if (repository.getId().equals(id) && repository.getUrl().equals(url)) {
+                return repository;
+            }
+        }
+        RemoteRepository repository = new RemoteRepository.Builder(id, "default", url).build();
+        RemoteRepository.Builder builder = new RemoteRepository.Builder(repository);
+        Authentication authentication = session.getAuthenticationSelector() != null
+                ? session.getAuthenticationSelector().getAuthentication(repository) : null;
+        Proxy proxy = session.getProxySelector() != null ? session.getProxySelector().getProxy(repository) : null;
+        return builder.setAuthentication(authentication).setProxy(proxy).build();
+    }
+
+    private static List<RemoteRepository> getRepositories(MavenProject project) {
+        List<RemoteRepository> repositories = project.getRemoteProjectRepositories();
+        return repositories != null ? repositories : Collections.emptyList();
+    }
+
+    /**
+     * Store the given graph for the given key.
+     */
+    public void store(String key, DependencyNode root) {
+        if (root == null || root.getArtifact() == null) {
+            return;
+        }
+        Map<String, Integer> repositories = new LinkedHashMap<>();
+        StringBuilder nodes = new StringBuilder();
+        write(nodes, repositories, root, 0);
+        StringBuilder sb = new StringBuilder();
+        sb.append(HEADER).append('\n');
+        repositories.forEach((repository, index) -> sb.append(REPOSITORY).append(' ').append(index)
+                .append(' ').append(repository).append('\n'));
+        sb.append(nodes);
+        Path file = directory.resolve(key + ".graph");
+        try {
+            Files.createDirectories(directory);
+            PomExcluder.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warn("Unable to store dependency graph in {}: {}", file, e.toString());
+        }
+    }
+
+    private void write(StringBuilder sb, Map<String, Integer> repositories, DependencyNode node, int depth) {
+        Artifact artifact = node.getArtifact();
+        Dependency dependency = node.getDependency();
+        sb.append(depth).append(' ')
+                .append(artifact.getGroupId()).append(':')
+                .append(artifact.getArtifactId()).append(':')
+                .append(artifact.getExtension()).append(':')
+                .append(artifact.getClassifier()).append(':')
+                .append(artifact.getVersion()).append(' ')
+                .append(dependency != null ? dependency.getScope() : "").append(' ')
+                .append(dependency != null && dependency.isOptional()).append(' ');
+        if (node.getRepositories().isEmpty()) {
+            sb.append(NONE);
+        } else {
+            for (int i = 0; i < node.getRepositories().size(); i++) {
+                RemoteRepository repository = node.getRepositories().get(i);
+                String text = encode(repository.getId()) + " " + encode(repository.getUrl());
+                sb.append(i > 0 ? "," : "").append(repositories.computeIfAbsent(text, r -> repositories.size()));
+            }
+        }
+        sb.append(' ').append(encodeProperties(artifact.getProperties())).append('\n');
+        for (DependencyNode child : node.getChildren()) {
+            write(sb, repositories, child, depth + 1);
+        }
+    }
+
+    private static String encodeProperties(Map<String, String> properties) {
+        if (properties.isEmpty()) {
+            return NONE;
+        }
+        StringBuilder sb = new StringBuilder();
+        new TreeMap<>(properties).forEach((k, v) -> sb.append(sb.length() > 0 ? "&" : "")
+                .append(encode(k)).append('=').append(encode(v)));
+        return sb.toString();
+    }
+
+    private static Map<String, String> decodeProperties(String text) {
+        Map<String, String> properties = new HashMap<>();
+        if (!NONE.equals(text)) {
+            for (String property : text.split("&")) {
+                int idx = property.indexOf('=');
+                properties.put(decode(property.substring(0, idx)), decode(property.substring(idx + 1)));
+            }
+        }
+        return properties;
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static String decode(String value) {
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,206 @@
+package org.jboss.fuse.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.apache.maven.model.Dependency;
+import org.apache.maven.model.InputLocation;
+import org.apache.maven.model.InputSource;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.io.xpp3.MavenXpp3ReaderEx;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+
+/**
+ * Standalone entry point applying exclusions to many reactors in a single JVM, without
+ * starting a Maven session.
+ *
+ * Modules are discovered from the raw aggregator poms: no inheritance or profile activation
+ * is performed, only the <code>${project.*}</code> and model properties are interpolated
+ * in dependency coordinates.
+ *
+ * Usage: <code>ExcludeBatch &lt;exclusions-file&gt; &lt;reactor-root&gt;...</code>
+ */
+public class ExcludeBatch {
+
+    private final List<String> selectors;
+    private final int threads;
+    // readers are not thread safe, so each worker thread reuses its own
+    private final ThreadLocal<MavenXpp3ReaderEx> readers = ThreadLocal.withInitial(MavenXpp3ReaderEx::new);
+
+    public ExcludeBatch(List<String> selectors, int threads) {
+        this.selectors = selectors;
+        this.threads = threads;
+    }
+
+    /**
+     * The outcome of trimming one reactor.
+     */
+    public static class Result {
+        final File root;
+        final int projects;
+        final int excluded;
+        final int rewritten;
+        final long nanos;
+
+        Result(File root, int projects, int excluded, int rewritten, long nanos) {
+            this.root = root;
+            this.projects = projects;
+            this.excluded = excluded;
+            this.rewritten = rewritten;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return root + ": " + projects + " projects, " + excluded + " excluded, "
+                    + rewritten + " poms rewritten in " + nanos / 1_000_000 + " ms";
+        }
+    }
+
+    public List<Result> run(List<File> roots) throws IOException, XmlPullParserException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, roots.size())));
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (File root : roots) {
+                futures.add(executor.submit(() -> process(root)));
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof XmlPullParserException) {
+                        throw (XmlPullParserException) e.getCause();
+                    }
+                    throw new IOException("Unable to process reactor", e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public Result process(File root) throws IOException, XmlPullParserException {
+        long start = System.nanoTime();
+        File rootDir = root.getCanonicalFile();
+        List<MavenProject> projects = new ArrayList<>();
+        discover(readers.get(), new File(rootDir, "pom.xml"), projects);
+        ExcludePattern exclusions = new ExcludePattern(rootDir, selectors);
+        exclusions.indexProjects(projects);
+        PomExcluder excluder = new PomExcluder(exclusions, projects);
+        int excluded = 0;
+        int rewritten = 0;
+        for (MavenProject project : projects) {
+            if (exclusions.isMatchingProject(project)) {
+                excluded++;
+            } else {
+                Map<String, List<InputLocation>> removed = excluder.excludeFromPom(project);
+                if (!removed.isEmpty()) {
+                    excluder.rewritePom(project, removed);
+                    rewritten++;
+                }
+            }
+        }
+        return new Result(root, projects.size(), excluded, rewritten, System.nanoTime() - start);
+    }
+
+    private void discover(MavenXpp3ReaderEx reader, File pomFile, List<MavenProject> projects)
+            throws IOException, XmlPullParserException {
+        Model model;
+        InputSource source = new InputSource();
+        source.setLocation(pomFile.getPath());
+        try (InputStream is = Files.newInputStream(pomFile.toPath())) {
+            model = reader.read(is, false, source);
+        }
+        MavenProject project = new MavenProject(model);
+        project.setFile(pomFile);
+        source.setModelId(project.getGroupId() + ":" + project.getArtifactId() + ":" + project.getVersion());
+        interpolate(project);
+        projects.add(project);
+        for (String module : model.getModules()) {
+            File moduleFile = new File(pomFile.getParentFile(), module.replace('\\', File.separatorChar).replace('/', File.separatorChar));
+            if (moduleFile.isDirectory()) {
+                moduleFile = new File(moduleFile, "pom.xml");
+            }
+            if (moduleFile.isFile()) {
+                discover(reader, moduleFile.getCanonicalFile(), projects);
+            }
+        }
+    }
+
+    private void interpolate(MavenProject project) {
+        List<Dependency> dependencies = new ArrayList<>(project.getModel().getDependencies());
+        if (project.getModel().getDependencyManagement() != null) {
+            dependencies.addAll(project.getModel().getDependencyManagement().getDependencies());
+        }
+        for (Dependency dependency : dependencies) {
+            dependency.setGroupId(interpolate(project, dependency.getGroupId()));
+            dependency.setArtifactId(interpolate(project, dependency.getArtifactId()));
+        }
+    }
+
+    private String interpolate(MavenProject project, String value) {
+        if (value == null || !value.contains("${")) {
+            return value;
+        }
+        if (project.getGroupId() != null) {
+            value = value.replace("${project.groupId}", project.getGroupId())
+                    .replace("${pom.groupId}", project.getGroupId());
+        }
+        if (project.getArtifactId() != null) {
+            value = value.replace("${project.artifactId}", project.getArtifactId());
+        }
+        if (project.getModel().getParent() != null && project.getModel().getParent().getGroupId() != null) {
+            value = value.replace("${project.parent.groupId}", project.getModel().getParent().getGroupId());
+        }
+        for (String name : project.getModel().getProperties().stringPropertyNames()) {
+            value = value.replace("${" + name + "}", project.getModel().getProperties().getProperty(name));
+        }
+        return value;
+    }
+
+    /**
+     * Print the results and the overall throughput.
+     */
+    public static void report(List<Result> results, long nanos, PrintStream out) {
+        results.forEach(out::println);
+        int projects = results.stream().mapToInt(r -> r.projects).sum();
+        out.println(results.size() + " reactors, " + projects + " projects processed in "
+                + nanos / 1_000_000 + " ms (" + (long) (projects * 1e9 / Math.max(1, nanos)) + " projects/s)");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: ExcludeBatch <exclusions-file> <reactor-root>...");
+            System.exit(1);
+        }
+        List<String> selectors = Files.readAllLines(new File(args[0]).toPath(), Charset.defaultCharset()).stream()
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .collect(Collectors.toList());
+        List<File> roots = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            roots.add(new File(args[i]));
+        }
+        long start = System.nanoTime();
+        List<Result> results = new ExcludeBatch(selectors, Runtime.getRuntime().availableProcessors()).run(roots);
+        report(results, System.nanoTime() - start, System.out);
+    }
+}
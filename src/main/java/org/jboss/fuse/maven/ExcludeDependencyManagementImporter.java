@@ -0,0 +1,125 @@
+package org.jboss.fuse.maven;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Dependency;
+import org.apache.maven.model.DependencyManagement;
+import org.apache.maven.model.InputLocation;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.building.ModelBuildingRequest;
+import org.apache.maven.model.building.ModelProblemCollector;
+import org.apache.maven.model.composition.DependencyManagementImporter;
+import org.apache.maven.plugin.LegacySupport;
+import org.eclipse.aether.SessionData;
+import org.eclipse.sisu.Priority;
+
+/**
+ * A {@link DependencyManagementImporter} which applies the exclusions to the dependency management
+ * imported from BOMs of the reactor, so that the importing projects do not carry the managed
+ * entries which have been trimmed from the BOM itself.
+ *
+ * BOMs are identified by the pom their dependency management has been read from, and only BOMs
+ * located in the reactor directory are trimmed.  The trimmed dependency management is computed
+ * once per BOM and session, and copied into each importing project.
+ */
+@Named
+@Singleton
+@Priority(10)
+public class ExcludeDependencyManagementImporter implements DependencyManagementImporter {
+
+    private final LegacySupport legacySupport;
+    private final List<DependencyManagementImporter> importers;
+    private volatile DependencyManagementImporter delegate;
+
+    @Inject
+    public ExcludeDependencyManagementImporter(LegacySupport legacySupport, List<DependencyManagementImporter> importers) {
+        this.legacySupport = legacySupport;
+        this.importers = importers;
+    }
+
+    @Override
+    public void importManagement(Model target, List<? extends DependencyManagement> sources,
+                                 ModelBuildingRequest request, ModelProblemCollector problems) {
+        MavenSession session = legacySupport.getSession();
+        Object pattern = session != null ? session.getRepositorySession().getData().get(ExcludePattern.class) : null;
+        if (pattern instanceof ExcludePattern && sources != null && !sources.isEmpty()) {
+            ExcludePattern exclusions = (ExcludePattern) pattern;
+            Map<String, List<Dependency>> trimmed = getTrimmedBoms(session.getRepositorySession().getData());
+            File reactor = session.getRequest().getBaseDirectory() != null
+                    ? new File(session.getRequest().getBaseDirectory()).getAbsoluteFile() : null;
+            File localRepository = session.getRepositorySession().getLocalRepository().getBasedir().getAbsoluteFile();
+            List<DependencyManagement> filtered = new ArrayList<>(sources.size());
+            for (DependencyManagement source : sources) {
+                String bom = getReactorBom(source, reactor, localRepository);
+                if (bom != null) {
+                    List<Dependency> dependencies = trimmed.computeIfAbsent(bom, k -> trim(source, exclusions));
+                    DependencyManagement copy = new DependencyManagement();
+                    for (Dependency dependency : dependencies) {
+                        copy.addDependency(dependency.clone());
+                    }
+                    filtered.add(copy);
+                } else {
+                    filtered.add(source);
+                }
+            }
+            sources = filtered;
+        }
+        getDelegate().importManagement(target, sources, request, problems);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, List<Dependency>> getTrimmedBoms(SessionData data) {
+        Object trimmed = data.get(ExcludeDependencyManagementImporter.class);
+        if (trimmed == null) {
+            data.set(ExcludeDependencyManagementImporter.class, null, new ConcurrentHashMap<String, List<Dependency>>());
+            trimmed = data.get(ExcludeDependencyManagementImporter.class);
+        }
+        return (Map<String, List<Dependency>>) trimmed;
+    }
+
+    /**
+     * The location of the BOM the given dependency management comes from, if it is part of the reactor.
+     */
+    static String getReactorBom(DependencyManagement source, File reactor, File localRepository) {
+        InputLocation location = source.getLocation("");
+        if (reactor == null || location == null || location.getSource() == null
+                || location.getSource().getLocation() == null) {
+            return null;
+        }
+        String path = new File(location.getSource().getLocation()).getAbsolutePath();
+        if (path.startsWith(reactor.getPath() + File.separator)
+                && !path.startsWith(localRepository.getPath() + File.separator)) {
+            return path;
+        }
+        return null;
+    }
+
+    static List<Dependency> trim(DependencyManagement source, ExcludePattern exclusions) {
+        List<Dependency> dependencies = new ArrayList<>(source.getDependencies().size());
+        for (Dependency dependency : source.getDependencies()) {
+            if (!exclusions.isMatchingDependency(dependency)) {
+                dependencies.add(dependency);
+            }
+        }
+        return dependencies;
+    }
+
+    private DependencyManagementImporter getDelegate() {
+        if (delegate == null) {
+            delegate = importers.stream()
+                    .filter(i -> !(i instanceof ExcludeDependencyManagementImporter))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalStateException("No default DependencyManagementImporter"));
+        }
+        return delegate;
+    }
+}
@@ -0,0 +1,60 @@
+package org.jboss.fuse.maven;
+
+import java.util.Objects;
+
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.ArtifactProperties;
+import org.eclipse.aether.collection.DependencyCollectionContext;
+import org.eclipse.aether.collection.DependencySelector;
+import org.eclipse.aether.graph.Dependency;
+
+/**
+ * A resolver {@link DependencySelector} which prunes excluded artifacts while collecting
+ * dependencies, so that transitive dependencies matching the exclusions are neither
+ * collected nor downloaded.
+ *
+ * The selector is combined with the session one, so it also applies to plugin classpaths.
+ * It is installed when the session starts, so the extension has to be declared as a core
+ * extension in <code>.mvn/extensions.xml</code>: when loaded as a build extension, only the
+ * poms are trimmed and a warning is logged.
+ */
+public class ExcludeDependencySelector implements DependencySelector {
+
+    private final ExcludePattern exclusions;
+
+    public ExcludeDependencySelector(ExcludePattern exclusions) {
+        this.exclusions = Objects.requireNonNull(exclusions);
+    }
+
+    @Override
+    public boolean selectDependency(Dependency dependency) {
+        Artifact artifact = dependency.getArtifact();
+        return !exclusions.isMatchingArtifact(artifact.getGroupId(), artifact.getArtifactId(),
+                artifact.getProperty(ArtifactProperties.TYPE, artifact.getExtension()),
+                artifact.getClassifier(), dependency.getScope());
+    }
+
+    @Override
+    public DependencySelector deriveChildSelector(DependencyCollectionContext context) {
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        return o != null && getClass() == o.getClass()
+                && exclusions == ((ExcludeDependencySelector) o).exclusions;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(exclusions);
+    }
+
+    @Override
+    public String toString() {
+        return "ExcludeDependencySelector[" + exclusions + "]";
+    }
+}
@@ -1,20 +1,24 @@
 package org.jboss.fuse.maven;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import javax.inject.Named;
@@ -22,18 +26,18 @@ import javax.inject.Singleton;
 
 import org.apache.maven.AbstractMavenLifecycleParticipant;
 import org.apache.maven.MavenExecutionException;
+import org.apache.maven.execution.BuildSuccess;
+import org.apache.maven.execution.BuildSummary;
 import org.apache.maven.execution.MavenSession;
-import org.apache.maven.model.Dependency;
 import org.apache.maven.model.InputLocation;
-import org.apache.maven.model.Model;
 import org.apache.maven.project.MavenProject;
-import org.codehaus.plexus.util.ReaderFactory;
-import org.codehaus.plexus.util.xml.XmlStreamReader;
 import org.codehaus.plexus.util.xml.pull.MXParser;
-import org.codehaus.plexus.util.xml.pull.XmlPullParser;
 import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.collection.DependencySelector;
+import org.eclipse.aether.util.graph.selector.AndDependencySelector;
 import org.jboss.fuse.maven.pull.BufferingParser;
-import org.jboss.fuse.maven.pull.XmlUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,6 +47,8 @@ public class ExcludeParticipant extends AbstractMavenLifecycleParticipant {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    private final Map<File, ExclusionSet> exclusionSets = new ConcurrentHashMap<>();
+
     //
     // AbstractMavenLifecycleParticipant
     //
@@ -53,21 +59,53 @@ public class ExcludeParticipant extends AbstractMavenLifecycleParticipant {
         logger.debug("***********************************************************");
     }
 
+    @Override
+    public void afterSessionStart(MavenSession session) throws MavenExecutionException {
+        ExcludePattern exclusions = getExcludePattern(session);
+        if (exclusions != null) {
+            // The repository session becomes read-only once the session is started,
+            // so the selector has to be installed now
+            RepositorySystemSession repoSession = session.getRepositorySession();
+            if (exclusions.hasArtifactSelectors() && repoSession instanceof DefaultRepositorySystemSession) {
+                DependencySelector selector = AndDependencySelector.newInstance(
+                        repoSession.getDependencySelector(), new ExcludeDependencySelector(exclusions));
+                ((DefaultRepositorySystemSession) repoSession).setDependencySelector(selector);
+                repoSession.getData().set(ExcludeDependencySelector.class, selector);
+                logger.debug("Installed dependency selector {}", selector);
+            }
+        }
+    }
+
     @Override
     public void afterProjectsRead(MavenSession session) throws MavenExecutionException {
-        File file = new File(session.getRequest().getMultiModuleProjectDirectory(), ".mvn/excludes.txt");
-        if (file.canRead()) {
-            ExcludePattern exclusions = getExcludePattern(session, file);
+        ExcludePattern exclusions = getExcludePattern(session);
+        if (exclusions != null) {
             logger.debug("***********************************************************");
             logger.info("ExcludeExtension initialized");
             logger.info("Using following exclusions: {}", exclusions);
             logger.debug("***********************************************************");
-            Map<File, MavenProject> projectsByPomLocation =  session.getAllProjects().stream()
-                    .collect(Collectors.toMap(MavenProject::getFile, Function.identity()));
-            Map<String, MavenProject> projectsByGroupArtifact =  session.getAllProjects().stream()
-                    .collect(Collectors.toMap(p -> p.getGroupId() + ":" + p.getArtifactId(), Function.identity()));
+            if (!isDependencySelectorInstalled(session, exclusions)) {
+                logger.warn("Transitive dependencies are not pruned: the extension has to be declared "
+                        + "in .mvn/extensions.xml to exclude them while collecting dependencies");
+            }
+            ReactorStats before = ReactorStats.compute(session.getAllProjects(), session.getProjectDependencyGraph());
+            exclusions.indexProjects(session.getAllProjects());
+            String shard = getProperty(session, "exclude.shard");
+            if (shard != null) {
+                applySharding(session, exclusions, shard);
+            }
+            if (Boolean.parseBoolean(getProperty(session, "exclude.offline"))) {
+                excludeUnavailable(session, exclusions);
+            }
+            if (Boolean.parseBoolean(getProperty(session, "exclude.substitute"))) {
+                substituteExcluded(session, exclusions);
+            }
+            PomExcluder excluder = new PomExcluder(exclusions, session.getAllProjects());
+            boolean materialize = isPomFileNeeded(session);
             List<MavenProject> newAllProjects = new ArrayList<>();
             List<MavenProject> newProjects = new ArrayList<>();
+            List<MavenProject> excludedProjects = new ArrayList<>();
+            Map<MavenProject, Map<String, List<InputLocation>>> removals = new HashMap<>();
             for (MavenProject project : session.getAllProjects()) {
                 // Remove this project completely
                 if (!exclusions.isMatchingProject(project)) {
@@ -77,150 +115,433 @@ public class ExcludeParticipant extends AbstractMavenLifecycleParticipant {
                         newProjects.add(project);
                     }
                     // Remove modules
-                    Map<String, List<InputLocation>> removed = excludeFromPom(exclusions, projectsByPomLocation,
-                            projectsByGroupArtifact, project);
+                    Map<String, List<InputLocation>> removed = excluder.excludeFromPom(project);
 
                     if (!removed.isEmpty()) {
-                        File pomFile = project.getFile();
-                        try (XmlStreamReader in = ReaderFactory.newXmlReader(pomFile))
-                        {
-                            rewritePom(project, pomFile, removed, in);
-                        } catch (Exception e) {
-                            throw new MavenExecutionException("Unable to write pom", e);
+                        removals.put(project, removed);
+                        if (materialize) {
+                            try {
+                                excluder.rewritePom(project, removed);
+                            } catch (Exception e) {
+                                throw new MavenExecutionException("Unable to write pom", e);
+                            }
                         }
                     }
                 } else {
                     logger.debug("Project excluded: " + project);
+                    excludedProjects.add(project);
                 }
             }
+            if (!materialize) {
+                materializeUpstreams(session, excluder, removals, newAllProjects);
+            }
+            ReactorStats after = ReactorStats.compute(newAllProjects, session.getProjectDependencyGraph());
             session.setAllProjects(newAllProjects);
             session.setProjects(newProjects);
+            ExclusionService.setPlan(session, new ExclusionService.Plan(excludedProjects, removals, excluder));
+            if (Boolean.parseBoolean(getProperty(session, "exclude.graphCache"))) {
+                session.getRepositorySession().getData().set(DependencyGraphCache.class,
+                        new DependencyGraphCache(getGraphCacheDirectory(session), exclusions, newAllProjects,
+                                session.getProjectDependencyGraph(), session.getUserProperties()));
+            }
+            report(session, before, after);
         } else {
             logger.debug( "*****************************************************************************" );
-            logger.warn( "ExcludeExtension initialized but no exclusions provided in ./mvn/excludes.txt" );
+            logger.warn( "ExcludeExtension initialized but no exclusions provided in ./mvn/excludes.txt or ./mvn/excludes.d" );
             logger.debug( "*****************************************************************************" );
         }
     }
 
-    private ExcludePattern getExcludePattern(MavenSession session, File file) throws MavenExecutionException {
-        File reactorDirectory = Optional.ofNullable(session.getRequest().getBaseDirectory())
-                .map(File::new).orElse(null);
-        ExcludePattern exclusions;
-        try {
-            exclusions = new ExcludePattern(reactorDirectory, Files.readAllLines(file.toPath(), Charset.defaultCharset()).stream()
-                    .map(String::trim)
-                    .filter(s -> !s.isEmpty())
-                    .collect(Collectors.toList()));
-        } catch (IOException e) {
-            throw new MavenExecutionException("Unable to read exclusions", e);
+    @Override
+    public void afterSessionEnd(MavenSession session) throws MavenExecutionException {
+        Object cached = session.getRepositorySession().getData().get(ExcludePattern.class);
+        if (cached instanceof ExcludePattern) {
+            reportSelectorUsage(session, (ExcludePattern) cached);
+            recordDurations(session);
         }
-        return exclusions;
     }
 
-    private void rewritePom(MavenProject project, File pomFile, Map<String, List<InputLocation>> removed, XmlStreamReader in)
-            throws XmlPullParserException, IOException {
+    private void applySharding(MavenSession session, ExcludePattern exclusions, String spec) throws MavenExecutionException {
+        ReactorSharding sharding;
+        Map<String, Long> durations;
+        String checksum;
+        try {
+            sharding = new ReactorSharding(spec);
+            Path file = getDurationsFile(session);
+            durations = ReactorSharding.loadDurations(file);
+            checksum = ReactorSharding.checksum(file);
+        } catch (IllegalArgumentException | IOException e) {
+            throw new MavenExecutionException("Unable to compute " + spec + " shard: " + e.getMessage(), e);
+        }
+        // all the nodes must use the same durations to compute the same partition
+        String expected = getProperty(session, "exclude.shard.durations.checksum");
+        if (expected != null && !checksum.equals(expected)) {
+            logger.warn("Build durations checksum is {} instead of {}, ignoring them so that all shards "
+                    + "compute the same partition", checksum, expected);
+            durations = new HashMap<>();
+            checksum = "none";
+        }
+        List<MavenProject> remaining = session.getAllProjects().stream()
+                .filter(p -> !exclusions.isMatchingProject(p))
+                .collect(Collectors.toList());
+        Set<MavenProject> selected = sharding.select(remaining, session.getProjectDependencyGraph(), durations);
+        List<MavenProject> others = remaining.stream()
+                .filter(p -> !selected.contains(p))
+                .collect(Collectors.toList());
+        exclusions.excludeProjects(others, sharding.toString());
+        logger.info("Building {}: {} projects out of {} (durations checksum {})",
+                sharding, selected.size(), remaining.size(), checksum);
+    }
 
-        File excludePomFile = new File(pomFile.getParentFile(), ".exclude-pom.xml");
-        MXParser mxParser = new MXParser();
-        mxParser.setInput(in);
-        XmlPullParser parser = new ExclusionParser(mxParser, removed);
-        try (OutputStreamWriter writer = new FileWriter(excludePomFile, Charset.forName(in.getEncoding()))) {
-            XmlUtils.writeDocument(parser, writer);
+    private void excludeUnavailable(MavenSession session, ExcludePattern exclusions) {
+        List<MavenProject> remaining = session.getAllProjects().stream()
+                .filter(p -> !exclusions.isMatchingProject(p))
+                .collect(Collectors.toList());
+        LocalRepositoryCheck check = new LocalRepositoryCheck(session.getRepositorySession(), exclusions,
+                session.getAllProjects());
+        Map<MavenProject, List<String>> missing = check.check(remaining);
+        if (!missing.isEmpty()) {
+            Set<MavenProject> unavailable = new LinkedHashSet<>();
+            for (MavenProject project : remaining) {
+                List<String> deps = missing.get(project);
+                if (deps != null) {
+                    logger.warn("Excluding {}: missing {} from the local repository", project, deps);
+                    unavailable.add(project);
+                    for (MavenProject downstream : session.getProjectDependencyGraph().getDownstreamProjects(project, true)) {
+                        if (unavailable.add(downstream)) {
+                            logger.warn("Excluding {}: depends on {}", downstream, project);
+                        }
+                    }
+                }
+            }
+            exclusions.excludeProjects(unavailable, "missing dependencies");
+            logger.warn("Excluded {} projects because of dependencies missing from the local repository", unavailable.size());
         }
-        project.setPomFile(excludePomFile);
     }
 
-    private Map<String, List<InputLocation>> excludeFromPom(
-            ExcludePattern exclusions,
-            Map<File, MavenProject> projectsByPomLocation,
-            Map<String, MavenProject> projectsByGroupArtifact,
-            MavenProject project) {
-        Model model = project.getModel();
-        Map<String, List<InputLocation>> removed = new HashMap<>();
-        List<InputLocation> removedModules = new ArrayList<>();
-        List<Integer> removedIndices = new ArrayList<>();
-        for (int i = 0; i < model.getModules().size(); i++) {
-            String module = model.getModules().get(i);
-            module = module.replace('\\', File.separatorChar).replace('/', File.separatorChar);
-            File moduleFile = new File(project.getBasedir(), module);
-            if (moduleFile.isDirectory()) {
-                moduleFile = new File(moduleFile, "pom.xml");
+    /**
+     * The {@link ExcludeDependencySelector} is installed when the session starts, which only
+     * happens for core extensions: build extensions declared in the pom are loaded too late.
+     */
+    static boolean isDependencySelectorInstalled(MavenSession session, ExcludePattern exclusions) {
+        return !exclusions.hasArtifactSelectors()
+                || session.getRepositorySession().getData().get(ExcludeDependencySelector.class) != null;
+    }
+
+    /**
+     * Substitute the excluded projects needed by the included ones with their prebuilt artifacts.
+     * The prebuilt artifacts depend on their own upstream projects, so the excluded projects are
+     * walked transitively through the substituted ones.
+     */
+    private void substituteExcluded(MavenSession session, ExcludePattern exclusions) {
+        Set<MavenProject> excluded = new LinkedHashSet<>();
+        for (MavenProject project : session.getAllProjects()) {
+            if (exclusions.isMatchingProject(project)) {
+                excluded.add(project);
             }
-            MavenProject child = projectsByPomLocation.get(moduleFile);
-            if (child != null && exclusions.isMatchingProject(child)) {
-                InputLocation loc = model.getLocation("modules");
-                if (loc != null) {
-                    removedModules.add(loc.getLocation(i));
-                }
-                removedIndices.add(i);
-                logger.debug("Removing module {} from {}", module, project);
+        }
+        Set<MavenProject> required = new LinkedHashSet<>();
+        Deque<MavenProject> queue = new ArrayDeque<>();
+        for (MavenProject project : session.getAllProjects()) {
+            if (!excluded.contains(project)) {
+                queue.addAll(session.getProjectDependencyGraph().getUpstreamProjects(project, false));
             }
         }
-        if (!removedIndices.isEmpty()) {
-            removed.put("modules", removedModules);
-            removeIndices(model.getModules(), removedIndices);
-            removedIndices.clear();
-        }
-        // Remove dependency management
-        if (model.getDependencyManagement() != null) {
-            List<InputLocation> removedDepMgmt = new ArrayList<>();
-            List<Dependency> dependencies = model.getDependencyManagement().getDependencies();
-            for (int i = 0; i < dependencies.size(); i++) {
-                Dependency dependency = dependencies.get(i);
-                String ga = dependency.getGroupId() + ":" + dependency.getArtifactId();
-                MavenProject dep = projectsByGroupArtifact.get(ga);
-                boolean remove;
-                if (dep != null) {
-                    remove = exclusions.isMatchingProject(dep);
+        LocalRepositoryCheck check = new LocalRepositoryCheck(session.getRepositorySession(), exclusions,
+                session.getAllProjects());
+        List<MavenProject> substituted = new ArrayList<>();
+        List<MavenProject> missing = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            MavenProject project = queue.poll();
+            if (excluded.contains(project) && required.add(project)) {
+                if (check.isAvailable(project)) {
+                    exclusions.substitute(project);
+                    logger.debug("Substituting {} with its prebuilt artifact", project);
+                    substituted.add(project);
+                    queue.addAll(session.getProjectDependencyGraph().getUpstreamProjects(project, false));
                 } else {
-                    remove = exclusions.isMatchingDependency(dependency);
+                    missing.add(project);
                 }
-                if (remove) {
-                    removedDepMgmt.add(dependency.getLocation(""));
-                    removedIndices.add(i);
-                    logger.debug("Removing managed dependency {} from {}", ga, project);
+            }
+        }
+        logger.info("Substituted {} excluded projects with prebuilt artifacts", substituted.size());
+        if (!missing.isEmpty()) {
+            logger.warn("{} excluded projects have no prebuilt artifact in the local repository, "
+                    + "dependencies on them will be removed: {}", missing.size(), missing);
+        }
+    }
+
+    /**
+     * Record the build durations used to balance the shards, when sharding or when explicitly
+     * enabled with <code>-Dexclude.shard.record=true</code>, so that normal builds do not modify
+     * the source tree.
+     */
+    private void recordDurations(MavenSession session) {
+        if (getProperty(session, "exclude.shard") == null
+                && !Boolean.parseBoolean(getProperty(session, "exclude.shard.record"))) {
+            return;
+        }
+        Path file = getDurationsFile(session);
+        try {
+            Map<String, Long> durations = ReactorSharding.loadDurations(file);
+            boolean changed = false;
+            for (MavenProject project : session.getProjects()) {
+                BuildSummary summary = session.getResult().getBuildSummary(project);
+                if (summary instanceof BuildSuccess) {
+                    durations.put(ReactorSharding.key(project), summary.getTime());
+                    changed = true;
                 }
             }
-            if (!removedDepMgmt.isEmpty()) {
-                removed.put("dependencyManagement/dependencies", removedDepMgmt);
-                removeIndices(dependencies, removedIndices);
-                removedIndices.clear();
+            if (changed) {
+                ReactorSharding.saveDurations(file, durations);
             }
+        } catch (IOException e) {
+            logger.warn("Unable to record build durations in {}: {}", file, e.toString());
         }
-        // Remove dependencies
-        List<InputLocation> removedDeps = new ArrayList<>();
-        List<Dependency> dependencies = model.getDependencies();
-        List<String> removedGa = new ArrayList<>();
-        for (int i = 0; i < dependencies.size(); i++) {
-            Dependency dependency = dependencies.get(i);
-            String ga = dependency.getGroupId() + ":" + dependency.getArtifactId();
-            MavenProject dep = projectsByGroupArtifact.get(ga);
-            boolean remove;
-            if (dep != null) {
-                remove = exclusions.isMatchingProject(dep);
-            } else {
-                remove = exclusions.isMatchingDependency(dependency);
+    }
+
+    private Path getDurationsFile(MavenSession session) {
+        String file = getProperty(session, "exclude.shard.durations");
+        return session.getRequest().getMultiModuleProjectDirectory().toPath()
+                .resolve(file != null ? file : ".mvn/exclude-durations.properties");
+    }
+
+    private void reportSelectorUsage(MavenSession session, ExcludePattern exclusions) throws MavenExecutionException {
+        List<ExcludePattern.Selector> dead = exclusions.getSelectors().stream()
+                .filter(s -> s.getHits() == 0)
+                .collect(Collectors.toList());
+        List<ExcludePattern.Selector> hottest = exclusions.getSelectors().stream()
+                .filter(s -> s.getHits() > 0)
+                .sorted(Comparator.comparingLong(ExcludePattern.Selector::getHits).reversed())
+                .limit(10)
+                .collect(Collectors.toList());
+        Object cache = session.getRepositorySession().getData().get(DependencyGraphCache.class);
+        if (cache instanceof DependencyGraphCache && ((DependencyGraphCache) cache).hasHits()) {
+            // cached graphs are not collected, so their selectors are never hit
+            logger.info("Exclusions: {} selectors, unused selectors not reported as some dependency graphs "
+                    + "were loaded from the cache", exclusions.getSelectors().size());
+            hottest.forEach(s -> logger.info("  {} matched {} times", s, s.getHits()));
+            return;
+        }
+        logger.info("Exclusions: {} selectors, {} never matched", exclusions.getSelectors().size(), dead.size());
+        hottest.forEach(s -> logger.info("  {} matched {} times", s, s.getHits()));
+        dead.forEach(s -> logger.debug("  {} never matched", s));
+        String threshold = getProperty(session, "exclude.deadSelectors.threshold");
+        if (threshold != null && dead.size() > parseThreshold(threshold)) {
+            String output = getProperty(session, "exclude.deadSelectors.output");
+            if (output == null) {
+                throw new MavenExecutionException(dead.size() + " exclusion selectors never matched (threshold is "
+                        + threshold + "): " + dead, getExcludesDirectory(session));
             }
-            if (remove) {
-                removedDeps.add(dependency.getLocation(""));
-                removedIndices.add(i);
-                removedGa.add(ga);
-                logger.debug("Removing dependency {} from {}", ga, project);
+            Path path = session.getRequest().getMultiModuleProjectDirectory().toPath().resolve(output);
+            List<String> pruned = exclusions.getSelectors().stream()
+                    .filter(s -> s.getHits() > 0)
+                    .map(ExcludePattern.Selector::getText)
+                    .collect(Collectors.toList());
+            try {
+                Files.write(path, pruned, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new MavenExecutionException("Unable to write pruned exclusions", e);
             }
+            logger.warn("{} exclusion selectors never matched, pruned exclusions written to {}", dead.size(), path);
         }
-        if (!removedDeps.isEmpty()) {
-            removed.put("dependencies", removedDeps);
-            removeIndices(dependencies, removedIndices);
+    }
+
+    private static int parseThreshold(String threshold) throws MavenExecutionException {
+        try {
+            int value = Integer.parseInt(threshold);
+            if (value >= 0) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
         }
-        return removed;
+        throw new MavenExecutionException("Invalid exclude.deadSelectors.threshold '" + threshold
+                + "', expected a non negative number of selectors", (File) null);
     }
 
-    private void removeIndices(List<?> l, List<Integer> li) {
-        li.stream().sorted(Comparator.reverseOrder()).forEach(i -> l.remove((int) i));
+    /**
+     * The lifecycle phases which do not publish the pom: the in-memory model is already trimmed,
+     * and the plugins reading the pom file in these phases (such as the archivers during
+     * <code>package</code>) get it written on demand by the {@link PomMaterializer}.
+     */
+    private static final Set<String> LOCAL_PHASES = Set.of(
+            "pre-clean", "clean", "post-clean",
+            "validate", "initialize", "generate-sources", "process-sources", "generate-resources",
+            "process-resources", "compile", "process-classes", "generate-test-sources", "process-test-sources",
+            "generate-test-resources", "process-test-resources", "test-compile", "process-test-classes",
+            "test", "prepare-package", "package", "pre-integration-test", "integration-test",
+            "post-integration-test", "verify");
+
+    /**
+     * Whether the trimmed poms have to be written, depending on <code>-Dexclude.materialize=always|never|auto</code>.
+     * In <code>auto</code> mode, they are written upfront only when the build goes past <code>verify</code>
+     * or invokes plugin goals directly.  Otherwise, only the poms of upstream projects are written
+     * upfront, and the other ones are generated on demand.
+     */
+    private boolean isPomFileNeeded(MavenSession session) {
+        String mode = getProperty(session, "exclude.materialize");
+        if ("always".equals(mode)) {
+            return true;
+        } else if ("never".equals(mode)) {
+            return false;
+        }
+        List<String> goals = session.getGoals();
+        boolean needed = goals.isEmpty() || !LOCAL_PHASES.containsAll(goals);
+        if (!needed) {
+            logger.debug("Not writing trimmed poms for goals {}", goals);
+        }
+        return needed;
+    }
+
+    /**
+     * Write the trimmed poms which are read during the dependency collection, i.e. the poms of
+     * the projects which have downstream projects in the reactor: the reactor reader gives
+     * <code>project.getFile()</code> for their pom artifact, so the original pom would bring
+     * back the excluded dependencies.
+     */
+    private void materializeUpstreams(MavenSession session, PomExcluder excluder,
+                                      Map<MavenProject, Map<String, List<InputLocation>>> removals,
+                                      List<MavenProject> included) throws MavenExecutionException {
+        Set<MavenProject> reactor = new HashSet<>(included);
+        for (Map.Entry<MavenProject, Map<String, List<InputLocation>>> entry : removals.entrySet()) {
+            MavenProject project = entry.getKey();
+            boolean upstream = session.getProjectDependencyGraph().getDownstreamProjects(project, false).stream()
+                    .anyMatch(reactor::contains);
+            if (upstream) {
+                try {
+                    excluder.rewritePom(project, entry.getValue());
+                } catch (Exception e) {
+                    throw new MavenExecutionException("Unable to write pom", e);
+                }
+            }
+        }
+    }
+
+    private void report(MavenSession session, ReactorStats before, ReactorStats after) throws MavenExecutionException {
+        logger.info("Exclusions removed: {}", ReactorStats.toSummary(before, after));
+        String report = getProperty(session, "exclude.report");
+        if (report != null) {
+            Path path = session.getRequest().getMultiModuleProjectDirectory().toPath().resolve(report);
+            try {
+                Files.createDirectories(path.toAbsolutePath().getParent());
+                Files.write(path, ReactorStats.toJson(before, after).getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new MavenExecutionException("Unable to write exclusion report", e);
+            }
+            logger.info("Exclusion report written to {}", path);
+        }
+    }
+
+    /**
+     * The dependency graphs are cached in <code>exclude.graphCache.dir</code>, relative to the
+     * root directory, or in <code>~/.m2/exclude-cache</code> so that the source tree is left untouched.
+     */
+    static Path getGraphCacheDirectory(MavenSession session) {
+        String dir = getProperty(session, "exclude.graphCache.dir");
+        if (dir != null) {
+            return session.getRequest().getMultiModuleProjectDirectory().toPath().resolve(dir);
+        }
+        String home = getProperty(session, "user.home");
+        return Paths.get(home != null ? home : System.getProperty("user.home"), ".m2", "exclude-cache");
+    }
+
+    static String getProperty(MavenSession session, String name) {
+        String value = session.getUserProperties().getProperty(name);
+        if (value == null) {
+            value = session.getSystemProperties().getProperty(name);
+        }
+        return value != null && !value.isBlank() ? value.trim() : null;
+    }
+
+    private File getExcludesDirectory(MavenSession session) {
+        return new File(session.getRequest().getMultiModuleProjectDirectory(), ".mvn");
+    }
+
+    /**
+     * The exclusion sets used for this build: the default <code>.mvn/excludes.txt</code> if it exists,
+     * followed by the named profiles from <code>.mvn/excludes.d/</code> selected using
+     * <code>-Dexclude.profile=name1,name2</code>.
+     */
+    private List<File> getExcludesFiles(MavenSession session) throws MavenExecutionException {
+        File directory = getExcludesDirectory(session);
+        List<File> files = new ArrayList<>();
+        File file = new File(directory, "excludes.txt");
+        if (file.canRead()) {
+            files.add(file);
+        }
+        String profiles = getProperty(session, "exclude.profile");
+        if (profiles != null) {
+            for (String profile : profiles.split(",")) {
+                profile = profile.trim();
+                if (!profile.isEmpty()) {
+                    // profiles are plain file names in excludes.d, never paths
+                    if (profile.contains("/") || profile.contains("\\") || profile.contains("..")) {
+                        throw new MavenExecutionException("Invalid exclusion profile name '" + profile + "'", directory);
+                    }
+                    File profileFile = new File(directory, "excludes.d/" + profile + ".txt");
+                    if (!profileFile.canRead()) {
+                        throw new MavenExecutionException("Unknown exclusion profile '" + profile + "'", profileFile);
+                    }
+                    files.add(profileFile);
+                }
+            }
+        }
+        return files;
+    }
+
+    private ExcludePattern getExcludePattern(MavenSession session) throws MavenExecutionException {
+        // The pattern is compiled once per session and shared through the repository session data
+        Object cached = session.getRepositorySession().getData().get(ExcludePattern.class);
+        if (cached instanceof ExcludePattern) {
+            return (ExcludePattern) cached;
+        }
+        List<File> files = getExcludesFiles(session);
+        if (files.isEmpty() && getProperty(session, "exclude.shard") == null) {
+            return null;
+        }
+        File reactorDirectory = Optional.ofNullable(session.getRequest().getBaseDirectory())
+                .map(File::new).orElse(null);
+        // Merge all selected sets into a single matcher
+        Set<String> selectors = new LinkedHashSet<>();
+        for (File file : files) {
+            selectors.addAll(readExclusions(file));
+        }
+        ExcludePattern exclusions = new ExcludePattern(reactorDirectory, new ArrayList<>(selectors));
+        session.getRepositorySession().getData().set(ExcludePattern.class, exclusions);
+        return exclusions;
+    }
+
+    private List<String> readExclusions(File file) throws MavenExecutionException {
+        // Sets are kept across sessions (e.g. when running in a daemon) until the file changes
+        ExclusionSet set = exclusionSets.get(file);
+        if (set == null || set.lastModified != file.lastModified()) {
+            try {
+                set = new ExclusionSet(file.lastModified(), Files.readAllLines(file.toPath(), Charset.defaultCharset()).stream()
+                        .map(String::trim)
+                        .filter(s -> !s.isEmpty())
+                        .collect(Collectors.toList()));
+            } catch (IOException e) {
+                throw new MavenExecutionException("Unable to read exclusions", e);
+            }
+            exclusionSets.put(file, set);
+        }
+        return set.selectors;
+    }
+
+    static class ExclusionSet {
+        final long lastModified;
+        final List<String> selectors;
+
+        ExclusionSet(long lastModified, List<String> selectors) {
+            this.lastModified = lastModified;
+            this.selectors = selectors;
+        }
     }
 
     static class ExclusionParser extends BufferingParser {
         private final Map<String, List<InputLocation>> removed;
+        private final Map<String, Set<Long>> positions = new HashMap<>();
         private boolean inModules;
         private boolean inDepMgmt;
         private boolean inDependencies;
@@ -271,13 +592,13 @@ public class ExcludeParticipant extends AbstractMavenLifecycleParticipant {
             List<Event> tmpBuffer = null;
             List<Event> spcBuffer = new ArrayList<>();
             StringBuilder sb = null;
-            List<InputLocation> toRemove = removed.get(key);
+            Set<Long> toRemove = getPositions(key);
             if (toRemove != null) {
                 int index = 0;
                 boolean discard = false;
                 for (Event e : buffer) {
                     if (e.event == START_TAG && nodeName.equals(e.name)) {
-                        discard = toRemove.stream().anyMatch(l -> l.getLineNumber() == e.line && l.getColumnNumber() == e.column);
+                        discard = toRemove.contains(position(e.line, e.column));
                         tmpBuffer = new ArrayList<>();
                         tmpBuffer.add(e);
                         sb = new StringBuilder();
@@ -311,76 +632,27 @@ public class ExcludeParticipant extends AbstractMavenLifecycleParticipant {
                 buffer.forEach(this::pushEvent);
             }
         }
-    }
-
-    class ExcludePattern {
-        private final List<String> selectors;
-        private final Map<String, Set<String>> gaSelectors;
-        private final Map<File, String> fileSelectors;
-        private final Map<File, String> dirSelectors;
 
-        public ExcludePattern(File reactorDirectory, List<String> selectors) {
-            this.selectors = selectors;
-            // [groupId]:artifactId
-            this.gaSelectors = new HashMap<>();
-            for (String s : selectors) {
-                int idx = s.indexOf(':');
-                if (idx >= 0) {
-                    gaSelectors.computeIfAbsent(s.substring(0, idx), k -> new HashSet<>()).add(s.substring(idx + 1));
-                }
+        /**
+         * The positions of the elements to remove for the given key, indexed once so that
+         * each element is checked in constant time.
+         */
+        private Set<Long> getPositions(String key) {
+            List<InputLocation> locations = removed.get(key);
+            if (locations == null) {
+                return null;
             }
-            this.fileSelectors = new HashMap<>();
-            this.dirSelectors = new HashMap<>();
-            for (String selector : selectors) {
-                if (selector.indexOf(':') < 0) {
-                    File f = new File(new File(reactorDirectory, selector).toURI().normalize());
-                    if (f.isFile()) {
-                        fileSelectors.put(f, selector);
-                    } else if (f.isDirectory()) {
-                        dirSelectors.put(f, selector);
-                    }
+            return positions.computeIfAbsent(key, k -> {
+                Set<Long> set = new HashSet<>(locations.size() * 2);
+                for (InputLocation location : locations) {
+                    set.add(position(location.getLineNumber(), location.getColumnNumber()));
                 }
-            }
-        }
-
-        public boolean isMatchingDependency(Dependency dependency) {
-            if (gaSelectors.get("").contains(dependency.getArtifactId())) {
-                logger.debug("Dependency {} matches ':{}'", dependency, dependency.getArtifactId());
-                return true;
-            }
-
-            if (gaSelectors.computeIfAbsent(dependency.getGroupId(), k -> new HashSet<>()).contains(dependency.getArtifactId())) {
-                logger.debug("Dependency {} matches '{}:{}'", dependency, dependency.getGroupId(), dependency.getArtifactId());
-                return true;
-            }
-            return false;
+                return set;
+            });
         }
 
-        public boolean isMatchingProject(MavenProject project) {
-            // [groupId]:artifactId
-            if (gaSelectors.get("").contains(project.getArtifactId())) {
-                logger.debug("Project {} matches ':{}'", project, project.getArtifactId());
-                return true;
-            }
-            if (gaSelectors.computeIfAbsent(project.getGroupId(), k -> new HashSet<>()).contains(project.getArtifactId())) {
-                logger.debug("Project {} matches '{}:{}'", project, project.getGroupId(), project.getArtifactId());
-                return true;
-            }
-            // relative path, e.g. "sub", "../sub" or "."
-            if (fileSelectors.containsKey(project.getFile())) {
-                logger.debug("Project {} matches '{}'", project, fileSelectors.get(project.getFile()));
-                return true;
-            }
-            if (dirSelectors.containsKey(project.getBasedir())) {
-                logger.debug("Project {} matches '{}'", project, dirSelectors.get(project.getBasedir()));
-                return true;
-            }
-            return false;
-        }
-
-        @Override
-        public String toString() {
-            return "ExcludePattern" + selectors;
+        private static long position(int line, int column) {
+            return ((long) line << 32) | (column & 0xFFFFFFFFL);
         }
     }
 }
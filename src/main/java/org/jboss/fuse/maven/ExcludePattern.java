@@ -0,0 +1,396 @@
+package org.jboss.fuse.maven;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.maven.model.Dependency;
+import org.apache.maven.project.MavenProject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The compiled form of the exclusion selectors.
+ *
+ * The compiled selectors are immutable once built, so they can be shared with the
+ * resolver threads collecting dependencies.  Each selector keeps a hit count
+ * based on a {@link LongAdder}, so that counting stays cheap under contention.
+ *
+ * Path selectors are compiled into a {@link PathTrie} and matched against the
+ * project locations known by the reactor, without accessing the file system.
+ * Attribute selectors are evaluated through a {@link ProjectAttributeIndex}.
+ */
+public class ExcludePattern {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final List<String> selectors;
+    private final List<Selector> compiled;
+    private final Map<String, Map<String, List<ArtifactSelector>>> gaSelectors;
+    private final PathTrie<Selector> pathSelectors;
+    private final Map<MavenProject, Selector> projectSelectors;
+    private final Map<Selector, Map<String, String>> attributeSelectors;
+    private final AtomicReference<Map<MavenProject, Selector>> attributeMatches;
+    private final Map<String, Set<String>> substitutes;
+    private final boolean readOnly;
+    private volatile ExcludePattern readOnlyView;
+
+    /**
+     * A single compiled selector, along with the number of times it matched.
+     */
+    public static class Selector {
+        private final String text;
+        private final LongAdder hits = new LongAdder();
+
+        Selector(String text) {
+            this.text = text;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        boolean hit() {
+            hits.increment();
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * A <code>groupId:artifactId[:type[:classifier]][@scope]</code> selector, indexed by groupId and artifactId.
+     * Empty or <code>*</code> parts match anything.
+     */
+    static class ArtifactSelector {
+        final Selector selector;
+        final String type;
+        final String classifier;
+        final String scope;
+
+        ArtifactSelector(Selector selector, String type, String classifier, String scope) {
+            this.selector = selector;
+            this.type = type;
+            this.classifier = classifier;
+            this.scope = scope;
+        }
+
+        boolean isQualified() {
+            return type != null || classifier != null || scope != null;
+        }
+
+        boolean matches(String type, String classifier, String scope) {
+            return (this.type == null || this.type.equals(type != null ? type : "jar"))
+                    && (this.classifier == null || this.classifier.equals(classifier != null ? classifier : ""))
+                    && (this.scope == null || this.scope.equals(scope != null && !scope.isEmpty() ? scope : "compile"));
+        }
+    }
+
+    private static String wildcard(String[] parts, int index) {
+        if (index >= parts.length || parts[index].isEmpty() || "*".equals(parts[index])) {
+            return null;
+        }
+        return parts[index];
+    }
+
+    public ExcludePattern(File reactorDirectory, List<String> selectors) {
+        this.selectors = selectors;
+        this.projectSelectors = new ConcurrentHashMap<>();
+        this.attributeSelectors = new LinkedHashMap<>();
+        this.attributeMatches = new AtomicReference<>(Collections.emptyMap());
+        this.substitutes = new ConcurrentHashMap<>();
+        this.readOnly = false;
+        Map<String, Selector> byText = new LinkedHashMap<>();
+        for (String s : selectors) {
+            byText.computeIfAbsent(s, Selector::new);
+        }
+        this.compiled = new ArrayList<>(byText.values());
+        // [groupId]:artifactId[:type[:classifier]][@scope]
+        this.gaSelectors = new HashMap<>();
+        for (Selector selector : compiled) {
+            String s = selector.text;
+            if (ProjectAttributeIndex.isAttributeSelector(s)) {
+                // [attribute=value,...], evaluated once the projects are known
+                attributeSelectors.put(selector, ProjectAttributeIndex.parse(s));
+            } else if (s.indexOf(':') >= 0) {
+                String scope = null;
+                int at = s.indexOf('@');
+                if (at >= 0) {
+                    scope = s.substring(at + 1).trim();
+                    scope = scope.isEmpty() || "*".equals(scope) ? null : scope;
+                    s = s.substring(0, at);
+                }
+                String[] parts = s.split(":", -1);
+                String groupId = wildcard(parts, 0);
+                String artifactId = wildcard(parts, 1);
+                ArtifactSelector as = new ArtifactSelector(selector, wildcard(parts, 2), wildcard(parts, 3), scope);
+                List<ArtifactSelector> list = gaSelectors
+                        .computeIfAbsent(groupId != null ? groupId : "*", k -> new HashMap<>())
+                        .computeIfAbsent(artifactId != null ? artifactId : "*", k -> new ArrayList<>());
+                // unqualified selectors first, so that they are found without checking the others
+                if (as.isQualified()) {
+                    list.add(as);
+                } else {
+                    list.add(0, as);
+                }
+            }
+        }
+        // relative path or glob, e.g. "sub", "../sub", "sub/pom.xml" or "components/**/*-deployment"
+        this.pathSelectors = new PathTrie<>();
+        String base = reactorDirectory != null ? reactorDirectory.getAbsolutePath() : new File("").getAbsolutePath();
+        for (Selector selector : compiled) {
+            if (selector.text.indexOf(':') < 0 && !ProjectAttributeIndex.isAttributeSelector(selector.text)) {
+                pathSelectors.add(base + "/" + selector.text, selector);
+            }
+        }
+    }
+
+    /**
+     * A read-only view sharing the state of the given pattern.
+     */
+    private ExcludePattern(ExcludePattern pattern) {
+        this.selectors = pattern.selectors;
+        this.compiled = pattern.compiled;
+        this.gaSelectors = pattern.gaSelectors;
+        this.pathSelectors = pattern.pathSelectors;
+        this.projectSelectors = pattern.projectSelectors;
+        this.attributeSelectors = pattern.attributeSelectors;
+        this.attributeMatches = pattern.attributeMatches;
+        this.substitutes = pattern.substitutes;
+        this.readOnly = true;
+    }
+
+    /**
+     * A view of this pattern which reflects the exclusions applied to the build but can not
+     * modify them: {@link #indexProjects}, {@link #excludeProjects} and {@link #substitute}
+     * throw an {@link UnsupportedOperationException}.
+     */
+    public ExcludePattern readOnly() {
+        if (readOnly) {
+            return this;
+        }
+        ExcludePattern view = readOnlyView;
+        if (view == null) {
+            view = new ExcludePattern(this);
+            readOnlyView = view;
+        }
+        return view;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("The exclusions can not be modified through a read-only view");
+        }
+    }
+
+    public boolean isMatchingDependency(Dependency dependency) {
+        return isMatchingArtifact(dependency.getGroupId(), dependency.getArtifactId(),
+                dependency.getType(), dependency.getClassifier(), dependency.getScope());
+    }
+
+    /**
+     * Whether the given artifact is excluded whatever its type, classifier and scope.
+     */
+    public boolean isMatchingArtifact(String groupId, String artifactId) {
+        if (isSubstituted(groupId, artifactId)) {
+            return false;
+        }
+        Selector selector = getGaSelector(groupId, artifactId, false, null, null, null);
+        if (selector != null) {
+            logger.debug("Artifact {}:{} matches '{}'", groupId, artifactId, selector);
+            return selector.hit();
+        }
+        return false;
+    }
+
+    public boolean isMatchingArtifact(String groupId, String artifactId, String type, String classifier, String scope) {
+        if (isSubstituted(groupId, artifactId)) {
+            return false;
+        }
+        Selector selector = getGaSelector(groupId, artifactId, true, type, classifier, scope);
+        if (selector != null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Artifact {}:{}:{}:{}@{} matches '{}'", groupId, artifactId, type, classifier, scope, selector);
+            }
+            return selector.hit();
+        }
+        return false;
+    }
+
+    public boolean isMatchingProject(MavenProject project) {
+        // [groupId]:artifactId, selectors restricted to a type, classifier or scope only apply to dependencies
+        Selector selector = getGaSelector(project.getGroupId(), project.getArtifactId(), false, null, null, null);
+        // path selectors match either the project directory or its pom file
+        if (selector == null && !pathSelectors.isEmpty()) {
+            selector = pathSelectors.match(project.getBasedir());
+            if (selector == null) {
+                selector = pathSelectors.match(project.getFile());
+            }
+        }
+        // model attributes
+        if (selector == null) {
+            selector = attributeMatches.get().get(project);
+        }
+        // projects excluded during the build, e.g. outside the current shard
+        if (selector == null && !projectSelectors.isEmpty()) {
+            selector = projectSelectors.get(project);
+        }
+        if (selector != null) {
+            logger.debug("Project {} matches '{}'", project, selector);
+            return selector.hit();
+        }
+        return false;
+    }
+
+    /**
+     * Evaluate the attribute selectors against the given projects.  This must be called once
+     * the projects are known, before they are matched.
+     */
+    public void indexProjects(Collection<MavenProject> projects) {
+        checkWritable();
+        if (attributeSelectors.isEmpty()) {
+            return;
+        }
+        Set<String> properties = new HashSet<>();
+        for (Map<String, String> conditions : attributeSelectors.values()) {
+            for (String attribute : conditions.keySet()) {
+                if (attribute.startsWith(ProjectAttributeIndex.PROPERTY)) {
+                    properties.add(attribute.substring(ProjectAttributeIndex.PROPERTY.length()));
+                }
+            }
+        }
+        ProjectAttributeIndex index = new ProjectAttributeIndex(projects, properties);
+        Map<MavenProject, Selector> matches = new HashMap<>();
+        attributeSelectors.forEach((selector, conditions) -> {
+            for (MavenProject project : index.query(conditions)) {
+                matches.putIfAbsent(project, selector);
+            }
+        });
+        attributeMatches.set(matches);
+    }
+
+    /**
+     * Exclude the given projects, on top of the selectors.  The given reason is used as
+     * the selector text when reporting.  This must be called before the projects are
+     * trimmed, and is safe to call concurrently.
+     */
+    public void excludeProjects(Collection<MavenProject> projects, String reason) {
+        checkWritable();
+        Selector selector = new Selector(reason);
+        for (MavenProject project : projects) {
+            projectSelectors.putIfAbsent(project, selector);
+        }
+    }
+
+    /**
+     * Substitute the given excluded project with its prebuilt artifact: the project is still
+     * removed from the reactor, but dependencies on it are kept and resolved as binaries.
+     */
+    public void substitute(MavenProject project) {
+        checkWritable();
+        substitutes.computeIfAbsent(project.getGroupId(), k -> ConcurrentHashMap.newKeySet()).add(project.getArtifactId());
+    }
+
+    public boolean isSubstituted(String groupId, String artifactId) {
+        if (substitutes.isEmpty()) {
+            return false;
+        }
+        Set<String> artifacts = substitutes.get(groupId);
+        return artifacts != null && artifacts.contains(artifactId);
+    }
+
+    private Selector getGaSelector(String groupId, String artifactId, boolean qualified,
+                                   String type, String classifier, String scope) {
+        Selector selector = getGaSelector(gaSelectors.get(groupId), artifactId, qualified, type, classifier, scope);
+        if (selector == null) {
+            selector = getGaSelector(gaSelectors.get("*"), artifactId, qualified, type, classifier, scope);
+        }
+        return selector;
+    }
+
+    private Selector getGaSelector(Map<String, List<ArtifactSelector>> artifacts, String artifactId, boolean qualified,
+                                   String type, String classifier, String scope) {
+        if (artifacts == null) {
+            return null;
+        }
+        Selector selector = getGaSelector(artifacts.get(artifactId), qualified, type, classifier, scope);
+        if (selector == null) {
+            selector = getGaSelector(artifacts.get("*"), qualified, type, classifier, scope);
+        }
+        return selector;
+    }
+
+    private Selector getGaSelector(List<ArtifactSelector> list, boolean qualified,
+                                   String type, String classifier, String scope) {
+        if (list != null) {
+            for (ArtifactSelector as : list) {
+                if (!as.isQualified()) {
+                    return as.selector;
+                } else if (!qualified) {
+                    // qualified selectors are sorted last
+                    break;
+                } else if (as.matches(type, classifier, scope)) {
+                    return as.selector;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A short identifier of the exclusions, derived from the selectors and the projects
+     * excluded during the build, which can be used to namespace generated files.
+     */
+    public String getId() {
+        StringBuilder sb = new StringBuilder();
+        for (Selector selector : compiled) {
+            sb.append(selector.text).append('\n');
+        }
+        projectSelectors.entrySet().stream()
+                .map(e -> e.getKey().getGroupId() + ":" + e.getKey().getArtifactId() + " " + e.getValue().text)
+                .sorted()
+                .forEach(s -> sb.append(s).append('\n'));
+        substitutes.entrySet().stream()
+                .flatMap(e -> e.getValue().stream().map(a -> "substitute " + e.getKey() + ":" + a))
+                .sorted()
+                .forEach(s -> sb.append(s).append('\n'));
+        return PomExcluder.hash(sb.toString().getBytes(StandardCharsets.UTF_8)).substring(0, 12);
+    }
+
+    /**
+     * The compiled selectors, in declaration order, without duplicates.
+     */
+    public List<Selector> getSelectors() {
+        return Collections.unmodifiableList(compiled);
+    }
+
+    /**
+     * Whether this pattern can match anything outside the reactor, i.e. has groupId/artifactId selectors.
+     */
+    public boolean hasArtifactSelectors() {
+        return !gaSelectors.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "ExcludePattern" + selectors;
+    }
+}
@@ -0,0 +1,150 @@
+package org.jboss.fuse.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.apache.maven.SessionScoped;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.InputLocation;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+
+/**
+ * Gives access to the exclusions applied to the current build, so that other extensions
+ * and plugins do not need to read and parse the exclusions themselves.
+ *
+ * The exclusions are computed once by the {@link ExcludeParticipant} and shared through
+ * the repository session data.  Lookups are cached and safe to use concurrently.
+ */
+@Named
+@SessionScoped
+public class ExclusionService {
+
+    private final MavenSession session;
+    private final Map<String, Boolean> artifacts = new ConcurrentHashMap<>();
+
+    /**
+     * What has been removed from the build.
+     */
+    static class Plan {
+        final List<MavenProject> excludedProjects;
+        final Set<MavenProject> excluded;
+        final Set<String> excludedArtifacts;
+        final Map<MavenProject, Map<String, List<InputLocation>>> removals;
+        final PomExcluder excluder;
+
+        Plan(List<MavenProject> excludedProjects, Map<MavenProject, Map<String, List<InputLocation>>> removals,
+             PomExcluder excluder) {
+            this.excludedProjects = Collections.unmodifiableList(excludedProjects);
+            this.excluded = new HashSet<>(excludedProjects);
+            this.excludedArtifacts = excludedProjects.stream()
+                    .map(p -> p.getGroupId() + ":" + p.getArtifactId())
+                    .collect(Collectors.toSet());
+            this.removals = Collections.unmodifiableMap(removals);
+            this.excluder = excluder;
+        }
+    }
+
+    @Inject
+    public ExclusionService(MavenSession session) {
+        this.session = Objects.requireNonNull(session);
+    }
+
+    static void setPlan(MavenSession session, Plan plan) {
+        session.getRepositorySession().getData().set(Plan.class, plan);
+    }
+
+    /**
+     * Whether exclusions are applied to this build.
+     */
+    public boolean isActive() {
+        return getExcludePattern() != null;
+    }
+
+    /**
+     * A read-only view of the compiled exclusions, or <code>null</code> if no exclusions are applied to this build.
+     */
+    public ExcludePattern getExcludePattern() {
+        Object pattern = session.getRepositorySession().getData().get(ExcludePattern.class);
+        return pattern instanceof ExcludePattern ? ((ExcludePattern) pattern).readOnly() : null;
+    }
+
+    /**
+     * Whether the given artifact is excluded from the build, either because it matches an artifact
+     * selector, or because its project has been removed from the reactor, whatever the reason
+     * (path, attribute, shard or offline exclusions).  Substituted projects are still consumed
+     * from the repository, so their artifacts are not excluded.
+     */
+    public boolean isExcluded(String groupId, String artifactId) {
+        ExcludePattern pattern = getExcludePattern();
+        if (pattern == null) {
+            return false;
+        }
+        Object plan = session.getRepositorySession().getData().get(Plan.class);
+        if (!(plan instanceof Plan)) {
+            // the projects exclusions are not known yet, so the result can not be cached
+            return pattern.isMatchingArtifact(groupId, artifactId);
+        }
+        return artifacts.computeIfAbsent(groupId + ":" + artifactId, k -> !pattern.isSubstituted(groupId, artifactId)
+                && (((Plan) plan).excludedArtifacts.contains(k) || pattern.isMatchingArtifact(groupId, artifactId)));
+    }
+
+    /**
+     * Whether the given project has been removed from the reactor.
+     */
+    public boolean isExcluded(MavenProject project) {
+        return getPlan().excluded.contains(project);
+    }
+
+    /**
+     * The projects removed from the reactor.
+     */
+    public List<MavenProject> getExcludedProjects() {
+        return getPlan().excludedProjects;
+    }
+
+    /**
+     * The locations of the elements removed from the given project pom, keyed by their parent path,
+     * i.e. <code>modules</code>, <code>dependencyManagement/dependencies</code> or <code>dependencies</code>.
+     */
+    public Map<String, List<InputLocation>> getRemovals(MavenProject project) {
+        return getPlan().removals.getOrDefault(project, Collections.emptyMap());
+    }
+
+    /**
+     * Make sure the trimmed pom of the given project is written to disk, as trimmed poms are
+     * only written eagerly when the requested goals need them, and return the project pom file.
+     */
+    public File materialize(MavenProject project) throws IOException {
+        Plan plan = getPlan();
+        Map<String, List<InputLocation>> removed = plan.removals.get(project);
+        if (removed != null && plan.excluder != null) {
+            synchronized (project) {
+                if (project.getContextValue(PomExcluder.POM_HASH) == null) {
+                    try {
+                        plan.excluder.rewritePom(project, removed);
+                    } catch (XmlPullParserException e) {
+                        throw new IOException("Unable to write pom for " + project, e);
+                    }
+                }
+            }
+        }
+        return project.getFile();
+    }
+
+    private Plan getPlan() {
+        Object plan = session.getRepositorySession().getData().get(Plan.class);
+        return plan instanceof Plan ? (Plan) plan : new Plan(Collections.emptyList(), Collections.emptyMap(), null);
+    }
+}
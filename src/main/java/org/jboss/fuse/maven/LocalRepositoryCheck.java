@@ -0,0 +1,153 @@
+package org.jboss.fuse.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.apache.maven.model.Dependency;
+import org.apache.maven.project.MavenProject;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.ArtifactType;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.util.version.GenericVersionScheme;
+import org.eclipse.aether.version.InvalidVersionSpecificationException;
+import org.eclipse.aether.version.VersionConstraint;
+
+/**
+ * Checks that the external dependencies declared by projects are available in the local repository.
+ *
+ * The local repository directories are listed at most once and cached, so that checking
+ * thousands of dependencies only costs one directory listing per artifact version.
+ */
+public class LocalRepositoryCheck {
+
+    private static final GenericVersionScheme VERSION_SCHEME = new GenericVersionScheme();
+
+    private final RepositorySystemSession session;
+    private final ExcludePattern exclusions;
+    private final Set<String> reactor;
+    private final File basedir;
+    private final Map<Path, Set<String>> listings = new ConcurrentHashMap<>();
+
+    public LocalRepositoryCheck(RepositorySystemSession session, ExcludePattern exclusions,
+                                Collection<MavenProject> reactorProjects) {
+        this.session = session;
+        this.exclusions = exclusions;
+        this.reactor = reactorProjects.stream()
+                .map(p -> p.getGroupId() + ":" + p.getArtifactId())
+                .collect(Collectors.toSet());
+        this.basedir = session.getLocalRepository().getBasedir();
+    }
+
+    /**
+     * Check the given projects in parallel.
+     *
+     * @return the missing dependencies, keyed by project, for the projects which can not be built
+     */
+    public Map<MavenProject, List<String>> check(Collection<MavenProject> projects) {
+        Map<MavenProject, List<String>> missing = new ConcurrentHashMap<>();
+        projects.parallelStream().forEach(project -> {
+            List<String> deps = getMissingDependencies(project);
+            if (!deps.isEmpty()) {
+                missing.put(project, deps);
+            }
+        });
+        return missing;
+    }
+
+    List<String> getMissingDependencies(MavenProject project) {
+        return project.getModel().getDependencies().stream()
+                .filter(d -> !"system".equals(d.getScope()))
+                .filter(d -> !reactor.contains(d.getGroupId() + ":" + d.getArtifactId()))
+                .filter(d -> !exclusions.isMatchingDependency(d))
+                .filter(d -> !isAvailable(d))
+                .map(d -> d.getGroupId() + ":" + d.getArtifactId() + ":" + d.getType() + ":" + d.getVersion())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Whether the main artifact of the given project is available in the local repository.
+     */
+    public boolean isAvailable(MavenProject project) {
+        String extension = project.getArtifact().getArtifactHandler().getExtension();
+        String path = session.getLocalRepositoryManager().getPathForLocalArtifact(new DefaultArtifact(
+                project.getGroupId(), project.getArtifactId(), "", extension, project.getVersion()));
+        Path file = basedir.toPath().resolve(path);
+        return list(file.getParent()).contains(file.getFileName().toString());
+    }
+
+    private boolean isAvailable(Dependency dependency) {
+        String version = dependency.getVersion();
+        if (version == null || version.contains("${")) {
+            // can not be checked
+            return true;
+        }
+        ArtifactType type = session.getArtifactTypeRegistry().get(dependency.getType());
+        String extension = type != null ? type.getExtension() : dependency.getType();
+        String classifier = dependency.getClassifier() != null ? dependency.getClassifier()
+                : type != null ? type.getClassifier() : "";
+        if (version.startsWith("[") || version.startsWith("(")) {
+            return isAvailable(dependency, classifier, extension, version);
+        }
+        return isAvailable(dependency.getGroupId(), dependency.getArtifactId(), classifier, extension, version);
+    }
+
+    /**
+     * For version ranges, look for the artifact file of any version within the range.
+     */
+    private boolean isAvailable(Dependency dependency, String classifier, String extension, String range) {
+        VersionConstraint constraint;
+        try {
+            constraint = VERSION_SCHEME.parseVersionConstraint(range);
+        } catch (InvalidVersionSpecificationException e) {
+            // can not be checked
+            return true;
+        }
+        String path = session.getLocalRepositoryManager().getPathForLocalArtifact(new DefaultArtifact(
+                dependency.getGroupId(), dependency.getArtifactId(), classifier, extension, "0"));
+        // the versions are the sub directories of the artifact directory, which also holds metadata files
+        for (String version : list(basedir.toPath().resolve(path).getParent().getParent())) {
+            try {
+                if (constraint.containsVersion(VERSION_SCHEME.parseVersion(version))
+                        && isAvailable(dependency.getGroupId(), dependency.getArtifactId(), classifier, extension, version)) {
+                    return true;
+                }
+            } catch (InvalidVersionSpecificationException e) {
+                // not a version directory
+            }
+        }
+        return false;
+    }
+
+    private boolean isAvailable(String groupId, String artifactId, String classifier, String extension, String version) {
+        String path = session.getLocalRepositoryManager().getPathForLocalArtifact(new DefaultArtifact(
+                groupId, artifactId, classifier, extension, version));
+        Path file = basedir.toPath().resolve(path);
+        return list(file.getParent()).contains(file.getFileName().toString());
+    }
+
+    private Set<String> list(Path directory) {
+        return listings.computeIfAbsent(directory, dir -> {
+            if (!Files.isDirectory(dir)) {
+                return Collections.emptySet();
+            }
+            Set<String> names = new HashSet<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                stream.forEach(p -> names.add(p.getFileName().toString()));
+            } catch (IOException e) {
+                // consider the directory as empty
+            }
+            return names;
+        });
+    }
+}
@@ -0,0 +1,148 @@
+package org.jboss.fuse.maven;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A trie of path segments supporting globs: <code>*</code> and <code>?</code> inside a segment,
+ * and <code>**</code> for any number of segments.
+ *
+ * Paths are only handled as strings, so that neither building nor matching the trie
+ * requires any file system access.
+ */
+class PathTrie<T> {
+
+    private final Node<T> root = new Node<>();
+
+    static class Node<T> {
+        final Map<String, Node<T>> children = new HashMap<>();
+        final List<String> globs = new ArrayList<>();
+        final List<Node<T>> globChildren = new ArrayList<>();
+        Node<T> anyDepth;
+        T value;
+    }
+
+    /**
+     * Add the given absolute path pattern.  The first value registered for a given pattern wins.
+     */
+    void add(String path, T value) {
+        Node<T> node = root;
+        for (String segment : segments(path)) {
+            if ("**".equals(segment)) {
+                if (node.anyDepth == null) {
+                    node.anyDepth = new Node<>();
+                }
+                node = node.anyDepth;
+            } else if (segment.indexOf('*') >= 0 || segment.indexOf('?') >= 0) {
+                int idx = node.globs.indexOf(segment);
+                if (idx < 0) {
+                    node.globs.add(segment);
+                    node.globChildren.add(new Node<>());
+                    idx = node.globs.size() - 1;
+                }
+                node = node.globChildren.get(idx);
+            } else {
+                node = node.children.computeIfAbsent(segment, s -> new Node<>());
+            }
+        }
+        if (node.value == null) {
+            node.value = value;
+        }
+    }
+
+    boolean isEmpty() {
+        return root.children.isEmpty() && root.globs.isEmpty() && root.anyDepth == null && root.value == null;
+    }
+
+    /**
+     * Find the value of a pattern matching the given file, or <code>null</code>.
+     */
+    T match(File file) {
+        if (file == null) {
+            return null;
+        }
+        List<String> segments = segments(file.getAbsolutePath());
+        return match(root, segments, 0);
+    }
+
+    private T match(Node<T> node, List<String> segments, int index) {
+        if (node.anyDepth != null) {
+            for (int i = index; i <= segments.size(); i++) {
+                T value = match(node.anyDepth, segments, i);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        if (index == segments.size()) {
+            return node.value;
+        }
+        String segment = segments.get(index);
+        Node<T> child = node.children.get(segment);
+        if (child != null) {
+            T value = match(child, segments, index + 1);
+            if (value != null) {
+                return value;
+            }
+        }
+        for (int i = 0; i < node.globs.size(); i++) {
+            if (glob(node.globs.get(i), segment)) {
+                T value = match(node.globChildren.get(i), segments, index + 1);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Split and normalize the given path, resolving <code>.</code> and <code>..</code> segments.
+     */
+    static List<String> segments(String path) {
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= path.length(); i++) {
+            if (i == path.length() || path.charAt(i) == '/' || path.charAt(i) == '\\') {
+                String segment = path.substring(start, i);
+                if ("..".equals(segment)) {
+                    if (!segments.isEmpty()) {
+                        segments.remove(segments.size() - 1);
+                    }
+                } else if (!segment.isEmpty() && !".".equals(segment)) {
+                    segments.add(segment);
+                }
+                start = i + 1;
+            }
+        }
+        return segments;
+    }
+
+    static boolean glob(String pattern, String text) {
+        int p = 0;
+        int t = 0;
+        int star = -1;
+        int mark = 0;
+        while (t < text.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == text.charAt(t))) {
+                p++;
+                t++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                mark = t;
+            } else if (star >= 0) {
+                p = star + 1;
+                t = ++mark;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+}
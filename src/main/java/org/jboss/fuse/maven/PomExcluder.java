@@ -0,0 +1,260 @@
+package org.jboss.fuse.maven;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.apache.maven.model.Dependency;
+import org.apache.maven.model.InputLocation;
+import org.apache.maven.model.Model;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.ReaderFactory;
+import org.codehaus.plexus.util.xml.XmlStreamReader;
+import org.codehaus.plexus.util.xml.pull.MXParser;
+import org.codehaus.plexus.util.xml.pull.XmlPullParser;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.jboss.fuse.maven.pull.XmlUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies an {@link ExcludePattern} to the models of a set of projects and writes the trimmed poms.
+ */
+public class PomExcluder {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ExcludePattern exclusions;
+    private final String pomFileName;
+    private final Map<File, MavenProject> projectsByPomLocation;
+    private final Map<String, Map<String, MavenProject>> projectsByGroupArtifact;
+
+    public PomExcluder(ExcludePattern exclusions, Collection<MavenProject> projects) {
+        this.exclusions = exclusions;
+        this.pomFileName = ".exclude-pom-" + exclusions.getId() + ".xml";
+        this.projectsByPomLocation = projects.stream()
+                .collect(Collectors.toMap(MavenProject::getFile, Function.identity()));
+        this.projectsByGroupArtifact = new HashMap<>();
+        for (MavenProject project : projects) {
+            projectsByGroupArtifact.computeIfAbsent(project.getGroupId(), g -> new HashMap<>())
+                    .put(project.getArtifactId(), project);
+        }
+    }
+
+    /**
+     * The project context key holding the SHA-256 hash of the trimmed pom content.
+     */
+    public static final String POM_HASH = "exclude.pomHash";
+
+    /**
+     * Write the trimmed pom next to the original one and point the project to it.
+     *
+     * The output only depends on the original pom and on the removed elements: lines are
+     * always separated with <code>\n</code> and the original encoding is kept.  The file is
+     * left untouched if it already has the expected content.
+     *
+     * @return the SHA-256 hash of the trimmed pom, also available from the {@link #POM_HASH} context value
+     */
+    public String rewritePom(MavenProject project, Map<String, List<InputLocation>> removed)
+            throws XmlPullParserException, IOException {
+        File pomFile = project.getFile();
+        byte[] content;
+        try (XmlStreamReader in = ReaderFactory.newXmlReader(pomFile)) {
+            content = trimPom(in, removed);
+        }
+        File excludePomFile = new File(pomFile.getParentFile(), pomFileName);
+        if (!excludePomFile.isFile() || !Arrays.equals(content, Files.readAllBytes(excludePomFile.toPath()))) {
+            write(excludePomFile.toPath(), content);
+        }
+        String hash = hash(content);
+        project.setPomFile(excludePomFile);
+        project.setContextValue(POM_HASH, hash);
+        return hash;
+    }
+
+    /**
+     * Write the file through a temporary file and an atomic move, so that concurrent builds
+     * never see a partially written file.  The temporary file is created with the default
+     * permissions (unlike {@link Files#createTempFile}), so that the file stays readable by
+     * the other users of a shared checkout.
+     */
+    static void write(Path file, byte[] content) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try (OutputStream os = Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                os.write(content);
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * The name of the trimmed poms, namespaced by the exclusions, so that builds using
+     * different exclusions on the same checkout do not overwrite each other's poms.
+     */
+    public String getPomFileName() {
+        return pomFileName;
+    }
+
+    static byte[] trimPom(XmlStreamReader in, Map<String, List<InputLocation>> removed)
+            throws XmlPullParserException, IOException {
+        MXParser mxParser = new MXParser();
+        mxParser.setInput(in);
+        XmlPullParser parser = new ExcludeParticipant.ExclusionParser(mxParser, removed);
+        Charset charset = in.getEncoding() != null ? Charset.forName(in.getEncoding()) : StandardCharsets.UTF_8;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(baos, charset)) {
+            XmlUtils.writeDocument(parser, writer, "\n");
+        }
+        return baos.toByteArray();
+    }
+
+    static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    /**
+     * Remove the excluded modules, managed dependencies and dependencies from the project model
+     * and return the locations of the removed elements in the pom, keyed by their parent path.
+     *
+     * Each list is filtered in place in a single pass, collecting the locations of the removed
+     * elements along the way, and dependencies are looked up by groupId then artifactId, so that
+     * no key has to be built for each dependency.
+     */
+    public Map<String, List<InputLocation>> excludeFromPom(MavenProject project) {
+        Model model = project.getModel();
+        Map<String, List<InputLocation>> removed = new HashMap<>();
+        // Remove modules
+        List<String> modules = model.getModules();
+        InputLocation modulesLocation = model.getLocation("modules");
+        List<InputLocation> removedModules = null;
+        int kept = 0;
+        for (int i = 0; i < modules.size(); i++) {
+            String module = modules.get(i);
+            MavenProject child = getModuleProject(project, module);
+            if (child != null && exclusions.isMatchingProject(child)) {
+                if (removedModules == null) {
+                    removedModules = new ArrayList<>();
+                }
+                if (modulesLocation != null) {
+                    removedModules.add(modulesLocation.getLocation(i));
+                }
+                logger.debug("Removing module {} from {}", module, project);
+            } else {
+                modules.set(kept++, module);
+            }
+        }
+        if (removedModules != null) {
+            removed.put("modules", removedModules);
+            truncate(modules, kept);
+        }
+        // Remove dependency management
+        if (model.getDependencyManagement() != null) {
+            excludeDependencies(project, model.getDependencyManagement().getDependencies(),
+                    "dependencyManagement/dependencies", removed);
+        }
+        // Remove dependencies
+        excludeDependencies(project, model.getDependencies(), "dependencies", removed);
+        return removed;
+    }
+
+    private MavenProject getModuleProject(MavenProject project, String module) {
+        // the module may point to a directory or to a pom file, look for both
+        // rather than checking the file system
+        module = module.replace('\\', File.separatorChar).replace('/', File.separatorChar);
+        File moduleFile = new File(project.getBasedir(), module).toPath().normalize().toFile();
+        MavenProject child = projectsByPomLocation.get(new File(moduleFile, "pom.xml"));
+        return child != null ? child : projectsByPomLocation.get(moduleFile);
+    }
+
+    private void excludeDependencies(MavenProject project, List<Dependency> dependencies, String key,
+                                     Map<String, List<InputLocation>> removed) {
+        List<InputLocation> locations = null;
+        int kept = 0;
+        for (int i = 0; i < dependencies.size(); i++) {
+            Dependency dependency = dependencies.get(i);
+            if (isExcluded(dependency)) {
+                if (locations == null) {
+                    locations = new ArrayList<>();
+                }
+                InputLocation location = dependency.getLocation("");
+                if (isDeclaredIn(project, location)) {
+                    locations.add(location);
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Removing {} {}:{} from {}", key, dependency.getGroupId(), dependency.getArtifactId(), project);
+                }
+            } else {
+                dependencies.set(kept++, dependency);
+            }
+        }
+        if (locations != null) {
+            if (!locations.isEmpty()) {
+                removed.put(key, locations);
+            }
+            truncate(dependencies, kept);
+        }
+    }
+
+    /**
+     * Whether the element at the given location is declared in the project pom, rather than
+     * inherited from a parent or imported from a BOM, in which case it can not be removed from the pom.
+     */
+    private static boolean isDeclaredIn(MavenProject project, InputLocation location) {
+        if (location == null || location.getSource() == null || location.getSource().getLocation() == null
+                || project.getFile() == null) {
+            return true;
+        }
+        return new File(location.getSource().getLocation()).getAbsoluteFile().equals(project.getFile().getAbsoluteFile());
+    }
+
+    private boolean isExcluded(Dependency dependency) {
+        Map<String, MavenProject> artifacts = projectsByGroupArtifact.get(dependency.getGroupId());
+        MavenProject dep = artifacts != null ? artifacts.get(dependency.getArtifactId()) : null;
+        // dependencies on included projects may still be removed by type, classifier or scope,
+        // while dependencies on substituted projects are kept
+        return dep != null && exclusions.isMatchingProject(dep)
+                && !exclusions.isSubstituted(dep.getGroupId(), dep.getArtifactId())
+                || exclusions.isMatchingDependency(dependency);
+    }
+
+    private static void truncate(List<?> list, int size) {
+        list.subList(size, list.size()).clear();
+    }
+}
@@ -0,0 +1,81 @@
+package org.jboss.fuse.maven;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.maven.execution.MojoExecutionEvent;
+import org.apache.maven.execution.MojoExecutionListener;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+import org.eclipse.aether.SessionData;
+
+/**
+ * Writes the trimmed pom of a project right before a plugin known to read
+ * <code>project.getFile()</code> is executed, when the {@link ExcludeParticipant} did
+ * not write it upfront.
+ *
+ * Additional plugins can be given with <code>-Dexclude.materialize.plugins=artifactId,...</code>.
+ */
+@Named
+@Singleton
+public class PomMaterializer implements MojoExecutionListener {
+
+    static final Set<String> POM_READING_PLUGINS = Set.of(
+            "maven-jar-plugin", "maven-war-plugin", "maven-ear-plugin", "maven-ejb-plugin",
+            "maven-rar-plugin", "maven-bundle-plugin", "maven-assembly-plugin", "maven-source-plugin",
+            "maven-javadoc-plugin", "maven-shade-plugin", "maven-install-plugin", "maven-deploy-plugin",
+            "maven-gpg-plugin", "flatten-maven-plugin");
+
+    @Override
+    public void beforeMojoExecution(MojoExecutionEvent event) throws MojoExecutionException {
+        MavenProject project = event.getProject();
+        if (project == null || project.getContextValue(PomExcluder.POM_HASH) != null) {
+            return;
+        }
+        String artifactId = event.getExecution().getArtifactId();
+        if (!POM_READING_PLUGINS.contains(artifactId) && !getPlugins(event).contains(artifactId)) {
+            return;
+        }
+        try {
+            new ExclusionService(event.getSession()).materialize(project);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to write trimmed pom for " + project, e);
+        }
+    }
+
+    /**
+     * The additional plugins, parsed once per session and kept in the repository session data.
+     */
+    @SuppressWarnings("unchecked")
+    private Set<String> getPlugins(MojoExecutionEvent event) {
+        SessionData data = event.getSession().getRepositorySession().getData();
+        Object cached = data.get(PomMaterializer.class);
+        if (cached == null) {
+            Set<String> plugins = new HashSet<>();
+            String value = ExcludeParticipant.getProperty(event.getSession(), "exclude.materialize.plugins");
+            if (value != null) {
+                for (String plugin : value.split(",")) {
+                    if (!plugin.isBlank()) {
+                        plugins.add(plugin.trim());
+                    }
+                }
+            }
+            data.set(PomMaterializer.class, null, Collections.unmodifiableSet(plugins));
+            cached = data.get(PomMaterializer.class);
+        }
+        return (Set<String>) cached;
+    }
+
+    @Override
+    public void afterMojoExecutionSuccess(MojoExecutionEvent event) {
+    }
+
+    @Override
+    public void afterExecutionFailure(MojoExecutionEvent event) {
+    }
+}
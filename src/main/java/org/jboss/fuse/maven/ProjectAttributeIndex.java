@@ -0,0 +1,97 @@
+package org.jboss.fuse.maven;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.model.Plugin;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * An index of the projects by model attribute, used to evaluate attribute selectors such as
+ * <code>[packaging=pom]</code>, <code>[property:skipHeavy=true]</code> or
+ * <code>[plugin=io.quarkus:quarkus-maven-plugin]</code>.  Several conditions can be combined
+ * with commas, in which case all of them must match.
+ *
+ * The index is built once per session, in a single pass over the projects, and only
+ * records the properties used by the selectors.
+ */
+class ProjectAttributeIndex {
+
+    static final String PACKAGING = "packaging";
+    static final String PROPERTY = "property:";
+    static final String PLUGIN = "plugin";
+
+    private final Map<String, Map<String, Set<MavenProject>>> index = new HashMap<>();
+
+    /**
+     * Whether the given selector is an attribute selector.
+     */
+    static boolean isAttributeSelector(String selector) {
+        return selector.startsWith("[") && selector.endsWith("]");
+    }
+
+    /**
+     * Parse the conditions of an attribute selector, keyed by attribute.
+     */
+    static Map<String, String> parse(String selector) {
+        Map<String, String> conditions = new HashMap<>();
+        for (String condition : selector.substring(1, selector.length() - 1).split(",")) {
+            int idx = condition.indexOf('=');
+            if (idx > 0) {
+                conditions.put(condition.substring(0, idx).trim(), condition.substring(idx + 1).trim());
+            } else if (!condition.isBlank()) {
+                // [property:name] matches any value
+                conditions.put(condition.trim(), null);
+            }
+        }
+        return conditions;
+    }
+
+    ProjectAttributeIndex(Collection<MavenProject> projects, Set<String> properties) {
+        for (MavenProject project : projects) {
+            add(PACKAGING, project.getPackaging(), project);
+            for (String property : properties) {
+                String value = project.getProperties().getProperty(property);
+                if (value != null) {
+                    add(PROPERTY + property, value.trim(), project);
+                }
+            }
+            for (Plugin plugin : project.getBuildPlugins()) {
+                add(PLUGIN, plugin.getGroupId() + ":" + plugin.getArtifactId(), project);
+            }
+        }
+    }
+
+    private void add(String attribute, String value, MavenProject project) {
+        Map<String, Set<MavenProject>> values = index.computeIfAbsent(attribute, k -> new HashMap<>());
+        values.computeIfAbsent(value, k -> new HashSet<>()).add(project);
+        // also index under a null value to answer existence queries
+        values.computeIfAbsent(null, k -> new HashSet<>()).add(project);
+    }
+
+    /**
+     * Find the projects matching all the given conditions.
+     */
+    Set<MavenProject> query(Map<String, String> conditions) {
+        Set<MavenProject> result = null;
+        for (Map.Entry<String, String> condition : conditions.entrySet()) {
+            String attribute = condition.getKey();
+            Set<MavenProject> matching = index.getOrDefault(attribute, Collections.emptyMap())
+                    .getOrDefault(condition.getValue(), Collections.emptySet());
+            if (result == null) {
+                result = new LinkedHashSet<>(matching);
+            } else {
+                result.retainAll(matching);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result != null ? result : Collections.emptySet();
+    }
+}
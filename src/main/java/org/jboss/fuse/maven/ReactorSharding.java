@@ -0,0 +1,165 @@
+package org.jboss.fuse.maven;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.maven.execution.ProjectDependencyGraph;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Splits the reactor into balanced shards, based on the durations recorded by previous builds.
+ *
+ * Projects are assigned, longest first, to the shard where they add the least work, taking
+ * into account the upstream projects that shard would have to build too.  The assignment
+ * only depends on the reactor and on the durations, so that all nodes sharing the same
+ * durations file compute the same partition.
+ *
+ * The durations file must therefore be the same on all the nodes, either committed or
+ * shared between them: each node only records the durations of its own shard, so nodes
+ * keeping their own file would compute different partitions and build some projects twice
+ * and others never.  To guard against this, the expected {@link #checksum(Path)} of the file
+ * can be given with <code>-Dexclude.shard.durations.checksum</code>, in which case a node
+ * with a different file ignores the durations and falls back to a split which only depends
+ * on the reactor.
+ */
+public class ReactorSharding {
+
+    /**
+     * The duration assumed for projects which have never been built.
+     */
+    static final long DEFAULT_DURATION = 1000;
+
+    private final int index;
+    private final int count;
+
+    /**
+     * @param spec the shard specification, <code>index/count</code>, with <code>1 &lt;= index &lt;= count</code>
+     */
+    public ReactorSharding(String spec) {
+        int idx = spec.indexOf('/');
+        try {
+            this.index = Integer.parseInt(spec.substring(0, idx).trim());
+            this.count = Integer.parseInt(spec.substring(idx + 1).trim());
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid shard '" + spec + "', expected <index>/<count>", e);
+        }
+        if (count < 1 || index < 1 || index > count) {
+            throw new IllegalArgumentException("Invalid shard '" + spec + "', expected <index>/<count>");
+        }
+    }
+
+    /**
+     * Compute the projects to build on this shard, i.e. the projects assigned to it and their upstream projects.
+     */
+    public Set<MavenProject> select(Collection<MavenProject> projects, ProjectDependencyGraph graph,
+                                    Map<String, Long> durations) {
+        Set<MavenProject> reactor = new HashSet<>(projects);
+        List<MavenProject> sorted = new ArrayList<>(projects);
+        sorted.sort(Comparator.comparingLong((MavenProject p) -> duration(p, durations)).reversed()
+                .thenComparing(ReactorSharding::key));
+        List<Set<MavenProject>> shards = new ArrayList<>();
+        long[] loads = new long[count];
+        for (int i = 0; i < count; i++) {
+            shards.add(new LinkedHashSet<>());
+        }
+        for (MavenProject project : sorted) {
+            List<MavenProject> required = new ArrayList<>();
+            required.add(project);
+            for (MavenProject upstream : graph.getUpstreamProjects(project, true)) {
+                if (reactor.contains(upstream)) {
+                    required.add(upstream);
+                }
+            }
+            int best = -1;
+            long bestLoad = Long.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                long load = loads[i];
+                for (MavenProject p : required) {
+                    if (!shards.get(i).contains(p)) {
+                        load += duration(p, durations);
+                    }
+                }
+                if (load < bestLoad) {
+                    best = i;
+                    bestLoad = load;
+                }
+            }
+            shards.get(best).addAll(required);
+            loads[best] = bestLoad;
+        }
+        return shards.get(index - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "shard " + index + "/" + count;
+    }
+
+    static String key(MavenProject project) {
+        return project.getGroupId() + ":" + project.getArtifactId();
+    }
+
+    private static long duration(MavenProject project, Map<String, Long> durations) {
+        return durations.getOrDefault(key(project), DEFAULT_DURATION);
+    }
+
+    /**
+     * Load the recorded durations, in milliseconds, keyed by <code>groupId:artifactId</code>.
+     */
+    public static Map<String, Long> loadDurations(Path file) throws IOException {
+        Map<String, Long> durations = new HashMap<>();
+        if (Files.isRegularFile(file)) {
+            Properties props = new Properties();
+            try (InputStream is = Files.newInputStream(file)) {
+                props.load(is);
+            }
+            for (String key : props.stringPropertyNames()) {
+                try {
+                    durations.put(key, Long.parseLong(props.getProperty(key).trim()));
+                } catch (NumberFormatException e) {
+                    // ignore corrupted entries
+                }
+            }
+        }
+        return durations;
+    }
+
+    /**
+     * The SHA-256 checksum of the durations file, shortened to 12 characters, or <code>none</code>
+     * if there is no such file.
+     */
+    public static String checksum(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return "none";
+        }
+        return PomExcluder.hash(Files.readAllBytes(file)).substring(0, 12);
+    }
+
+    /**
+     * Store the durations, sorted by key so that the file is stable.
+     */
+    public static void saveDurations(Path file, Map<String, Long> durations) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# Project build durations in milliseconds, recorded by the maven-exclude-extension\n");
+        new TreeMap<>(durations).forEach((k, v) -> sb.append(k.replace(":", "\\:")).append('=').append(v).append('\n'));
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        try (OutputStream os = Files.newOutputStream(file)) {
+            os.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+}
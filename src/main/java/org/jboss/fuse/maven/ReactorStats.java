@@ -0,0 +1,120 @@
+package org.jboss.fuse.maven;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.execution.ProjectDependencyGraph;
+import org.apache.maven.model.Model;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * A snapshot of the size of the reactor and of its dependency graph,
+ * used to report what the exclusions actually save.
+ */
+public class ReactorStats {
+
+    final int projects;
+    final int modules;
+    final int dependencies;
+    final int managedDependencies;
+    final int edges;
+    final int criticalPath;
+
+    ReactorStats(int projects, int modules, int dependencies, int managedDependencies, int edges, int criticalPath) {
+        this.projects = projects;
+        this.modules = modules;
+        this.dependencies = dependencies;
+        this.managedDependencies = managedDependencies;
+        this.edges = edges;
+        this.criticalPath = criticalPath;
+    }
+
+    /**
+     * Compute the statistics for the given projects.  Edges are taken from the given graph
+     * and restricted to the given projects, so that the same graph can be used before and
+     * after the exclusions are applied.
+     */
+    public static ReactorStats compute(Collection<MavenProject> projects, ProjectDependencyGraph graph) {
+        Set<MavenProject> reactor = new HashSet<>(projects);
+        Map<MavenProject, List<MavenProject>> upstreams = new HashMap<>();
+        int modules = 0;
+        int dependencies = 0;
+        int managedDependencies = 0;
+        int edges = 0;
+        for (MavenProject project : projects) {
+            Model model = project.getModel();
+            modules += model.getModules().size();
+            dependencies += model.getDependencies().size();
+            if (model.getDependencyManagement() != null) {
+                managedDependencies += model.getDependencyManagement().getDependencies().size();
+            }
+            if (graph != null) {
+                List<MavenProject> up = new ArrayList<>(graph.getUpstreamProjects(project, false));
+                up.removeIf(p -> !reactor.contains(p));
+                upstreams.put(project, up);
+                edges += up.size();
+            }
+        }
+        // Longest chain of projects that have to be built one after the other
+        Map<MavenProject, Integer> depths = new HashMap<>();
+        int criticalPath = 0;
+        for (MavenProject project : projects) {
+            criticalPath = Math.max(criticalPath, depth(project, upstreams, depths));
+        }
+        return new ReactorStats(projects.size(), modules, dependencies, managedDependencies, edges, criticalPath);
+    }
+
+    private static int depth(MavenProject project, Map<MavenProject, List<MavenProject>> upstreams,
+                             Map<MavenProject, Integer> depths) {
+        Integer depth = depths.get(project);
+        if (depth == null) {
+            // the project graph is acyclic, so the recursion terminates
+            int max = 0;
+            for (MavenProject up : upstreams.getOrDefault(project, List.of())) {
+                max = Math.max(max, depth(up, upstreams, depths));
+            }
+            depth = max + 1;
+            depths.put(project, depth);
+        }
+        return depth;
+    }
+
+    /**
+     * Render a JSON report comparing the two snapshots.
+     */
+    public static String toJson(ReactorStats before, ReactorStats after) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        entry(sb, "projects", before.projects, after.projects).append(",\n");
+        entry(sb, "modules", before.modules, after.modules).append(",\n");
+        entry(sb, "dependencies", before.dependencies, after.dependencies).append(",\n");
+        entry(sb, "managedDependencies", before.managedDependencies, after.managedDependencies).append(",\n");
+        entry(sb, "edges", before.edges, after.edges).append(",\n");
+        entry(sb, "criticalPath", before.criticalPath, after.criticalPath).append("\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static StringBuilder entry(StringBuilder sb, String name, int before, int after) {
+        return sb.append("  \"").append(name).append("\": { \"before\": ").append(before)
+                .append(", \"after\": ").append(after)
+                .append(", \"removed\": ").append(before - after).append(" }");
+    }
+
+    /**
+     * A one line summary for the build log.
+     */
+    public static String toSummary(ReactorStats before, ReactorStats after) {
+        return "projects " + before.projects + " -> " + after.projects
+                + ", modules " + before.modules + " -> " + after.modules
+                + ", dependencies " + before.dependencies + " -> " + after.dependencies
+                + ", managed dependencies " + before.managedDependencies + " -> " + after.managedDependencies
+                + ", project edges " + before.edges + " -> " + after.edges
+                + ", critical path " + before.criticalPath + " -> " + after.criticalPath;
+    }
+}
@@ -46,6 +46,16 @@ public class XmlUtils
 
     public static void writeDocument( XmlPullParser parser, Writer writer )
             throws IOException, XmlPullParserException
+    {
+        writeDocument( parser, writer, System.lineSeparator() );
+    }
+
+    /**
+     * Write the document using the given line separator, so that the output does not
+     * depend on the platform.
+     */
+    public static void writeDocument( XmlPullParser parser, Writer writer, String lineSeparator )
+            throws IOException, XmlPullParserException
     {
         XmlSerializer serializer = new MXSerializer();
         serializer.setOutput( writer );
@@ -80,7 +90,7 @@ public class XmlUtils
                     serializer.endTag( parser.getNamespace(), parser.getName() );
                     break;
                 case XmlPullParser.TEXT:
-                    serializer.text( normalize( parser.getText() ) );
+                    serializer.text( normalize( parser.getText(), lineSeparator ) );
                     break;
                 case XmlPullParser.CDSECT:
                     serializer.cdsect( parser.getText() );
@@ -89,16 +99,16 @@ public class XmlUtils
                     serializer.entityRef( parser.getName() );
                     break;
                 case XmlPullParser.IGNORABLE_WHITESPACE:
-                    serializer.ignorableWhitespace( normalize( parser.getText() ) );
+                    serializer.ignorableWhitespace( normalize( parser.getText(), lineSeparator ) );
                     break;
                 case XmlPullParser.PROCESSING_INSTRUCTION:
                     serializer.processingInstruction( parser.getText() );
                     break;
                 case XmlPullParser.COMMENT:
-                    serializer.comment( normalize( parser.getText() ) );
+                    serializer.comment( normalize( parser.getText(), lineSeparator ) );
                     break;
                 case XmlPullParser.DOCDECL:
-                    serializer.docdecl( normalize( parser.getText() ) );
+                    serializer.docdecl( normalize( parser.getText(), lineSeparator ) );
                     break;
                 default:
                     break;
@@ -121,11 +131,11 @@ public class XmlUtils
         }
     }
 
-    private static String normalize( String input )
+    private static String normalize( String input, String lineSeparator )
     {
-        if ( input.indexOf( '\n' ) >= 0 && !"\n".equals( System.lineSeparator() ) )
+        if ( input.indexOf( '\n' ) >= 0 && !"\n".equals( lineSeparator ) )
         {
-            return input.replace( "\n", System.lineSeparator() );
+            return input.replace( "\n", lineSeparator );
         }
         return input;
     }
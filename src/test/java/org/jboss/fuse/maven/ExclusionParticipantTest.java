@@ -1,32 +1,78 @@
 package org.jboss.fuse.maven;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import org.apache.maven.MavenExecutionException;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.execution.BuildSuccess;
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.DefaultMavenExecutionResult;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.execution.MojoExecutionEvent;
+import org.apache.maven.execution.ProjectDependencyGraph;
+import org.apache.maven.model.Build;
 import org.apache.maven.model.Dependency;
+import org.apache.maven.model.DependencyManagement;
 import org.apache.maven.model.InputLocation;
 import org.apache.maven.model.Model;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.InputSource;
+import org.apache.maven.model.building.DefaultModelBuildingRequest;
+import org.apache.maven.model.composition.DefaultDependencyManagementImporter;
+import org.apache.maven.model.composition.DependencyManagementImporter;
 import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
+import org.apache.maven.model.io.xpp3.MavenXpp3ReaderEx;
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.plugin.internal.DefaultLegacySupport;
+import org.apache.maven.project.MavenProject;
 import org.codehaus.plexus.util.xml.XmlStreamReader;
 import org.codehaus.plexus.util.xml.pull.MXParser;
 import org.codehaus.plexus.util.xml.pull.XmlPullParser;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.artifact.ArtifactProperties;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.graph.DefaultDependencyNode;
+import org.eclipse.aether.graph.DependencyNode;
+import org.eclipse.aether.internal.impl.SimpleLocalRepositoryManagerFactory;
+import org.eclipse.aether.repository.LocalRepository;
+import org.eclipse.aether.repository.RemoteRepository;
 import org.jboss.fuse.maven.pull.XmlUtils;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class ExclusionParticipantTest {
 
@@ -56,6 +102,903 @@ public class ExclusionParticipantTest {
         System.out.println(sw);
     }
 
+    @Test
+    public void testDependencySelector() {
+        ExcludePattern exclusions = new ExcludePattern(new File("."), Arrays.asList(":module-1", "org.foo:bar"));
+        ExcludeDependencySelector selector = new ExcludeDependencySelector(exclusions);
+        assertFalse(selector.selectDependency(dep("org.jboss.fuse.maven.it:module-1")));
+        assertFalse(selector.selectDependency(dep("org.foo:bar")));
+        assertTrue(selector.selectDependency(dep("org.foo:baz")));
+        assertTrue(selector.selectDependency(dep("org.jboss.fuse.maven.it:module-2")));
+    }
+
+    @Test
+    public void testSelectorHits() {
+        ExcludePattern exclusions = new ExcludePattern(new File("."), Arrays.asList(":module-1", "org.foo:bar", ":module-1"));
+        assertTrue(exclusions.isMatchingArtifact("org.jboss.fuse.maven.it", "module-1"));
+        assertTrue(exclusions.isMatchingArtifact("org.other", "module-1"));
+        assertFalse(exclusions.isMatchingArtifact("org.foo", "baz"));
+        assertEquals(2, exclusions.getSelectors().size());
+        assertEquals(2, exclusions.getSelectors().get(0).getHits());
+        assertEquals(0, exclusions.getSelectors().get(1).getHits());
+    }
+
+    @Test
+    public void testBatch(@TempDir Path dir) throws Exception {
+        for (String pom : Arrays.asList("pom.xml", "module-1/pom.xml", "module-2/pom.xml")) {
+            Path target = dir.resolve("simple").resolve(pom);
+            Files.createDirectories(target.getParent());
+            Files.copy(Paths.get("src/it/projects/simple").resolve(pom), target);
+        }
+        ExcludeBatch.Result result = new ExcludeBatch(Arrays.asList(":module-1"), 2)
+                .run(Arrays.asList(dir.resolve("simple").toFile())).get(0);
+        assertEquals(3, result.projects);
+        assertEquals(1, result.excluded);
+        String name = ".exclude-pom-" + new ExcludePattern(dir.toFile(), Arrays.asList(":module-1")).getId() + ".xml";
+        String trimmed = Files.readString(dir.resolve("simple").resolve(name));
+        assertFalse(trimmed.contains("<module>module-1</module>"));
+        assertTrue(trimmed.contains("<module>module-2</module>"));
+        assertFalse(trimmed.contains("<artifactId>module-1</artifactId>"));
+    }
+
+    @Test
+    public void testBatchParallel(@TempDir Path dir) throws Exception {
+        List<File> roots = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Path root = dir.resolve("reactor-" + i);
+            for (String pom : Arrays.asList("pom.xml", "module-1/pom.xml", "module-2/pom.xml")) {
+                Path target = root.resolve(pom);
+                Files.createDirectories(target.getParent());
+                Files.copy(Paths.get("src/it/projects/simple").resolve(pom), target);
+            }
+            roots.add(root.toFile());
+        }
+        // a reactor without groupId nor parent must not break the interpolation
+        Path incomplete = dir.resolve("incomplete");
+        Files.createDirectories(incomplete);
+        Files.write(incomplete.resolve("pom.xml"), Arrays.asList(
+                "<project><modelVersion>4.0.0</modelVersion><artifactId>incomplete</artifactId>",
+                "<dependencies><dependency><groupId>${project.groupId}</groupId>",
+                "<artifactId>${project.parent.groupId}</artifactId></dependency></dependencies></project>"));
+        roots.add(incomplete.toFile());
+
+        long start = System.nanoTime();
+        List<ExcludeBatch.Result> results = new ExcludeBatch(Arrays.asList(":module-1"), 4).run(roots);
+        assertEquals(5, results.size());
+        for (int i = 0; i < 4; i++) {
+            ExcludeBatch.Result result = results.get(i);
+            assertEquals(roots.get(i), result.root);
+            assertEquals(3, result.projects);
+            assertEquals(1, result.excluded);
+            assertEquals(2, result.rewritten);
+        }
+        assertEquals(1, results.get(4).projects);
+        assertEquals(0, results.get(4).excluded);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ExcludeBatch.report(results, System.nanoTime() - start, new PrintStream(baos, true, StandardCharsets.UTF_8));
+        assertTrue(baos.toString(StandardCharsets.UTF_8).contains("5 reactors, 13 projects processed"));
+    }
+
+    @Test
+    public void testExcludeFromBom(@TempDir Path dir) throws Exception {
+        Path pom = dir.resolve("pom.xml");
+        Files.copy(Paths.get("src/test/resources/pom-2.xml"), pom);
+        List<String> selectors = Files.readAllLines(Paths.get("src/test/resources/excludes-2.txt")).stream()
+                .map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toList());
+        InputSource source = new InputSource();
+        Model model;
+        try (InputStream is = Files.newInputStream(pom)) {
+            model = new MavenXpp3ReaderEx().read(is, false, source);
+        }
+        MavenProject project = new MavenProject(model);
+        project.setFile(pom.toFile());
+        int before = model.getDependencyManagement().getDependencies().size();
+        PomExcluder excluder = new PomExcluder(new ExcludePattern(dir.toFile(), selectors), Arrays.asList(project));
+        Map<String, List<InputLocation>> removed = excluder.excludeFromPom(project);
+        int after = model.getDependencyManagement().getDependencies().size();
+        assertEquals(before - after, removed.get("dependencyManagement/dependencies").size());
+        assertTrue(after < before);
+        String hash = excluder.rewritePom(project, removed);
+        assertEquals(dir.resolve(excluder.getPomFileName()).toFile(), project.getFile());
+        byte[] content = Files.readAllBytes(project.getFile().toPath());
+        assertEquals(PomExcluder.hash(content), hash);
+        assertEquals(hash, project.getContextValue(PomExcluder.POM_HASH));
+        assertFalse(new String(content, StandardCharsets.UTF_8).contains("\r"));
+        Model trimmed = new MavenXpp3Reader().read(Files.newBufferedReader(project.getFile().toPath()));
+        assertEquals(after, trimmed.getDependencyManagement().getDependencies().size());
+    }
+
+    @Test
+    public void testConcurrentExclusionSets(@TempDir Path dir) throws Exception {
+        Path pom = dir.resolve("pom.xml");
+        Files.copy(Paths.get("src/test/resources/pom-2.xml"), pom);
+        List<String> selectors = Files.readAllLines(Paths.get("src/test/resources/excludes-2.txt")).stream()
+                .map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toList());
+        List<List<String>> sets = Arrays.asList(selectors, selectors.subList(0, 10));
+        ExecutorService executor = Executors.newFixedThreadPool(sets.size());
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<MavenProject>> futures = new ArrayList<>();
+            for (List<String> set : sets) {
+                futures.add(executor.submit(() -> {
+                    Model model;
+                    try (InputStream is = Files.newInputStream(pom)) {
+                        model = new MavenXpp3ReaderEx().read(is, false, new InputSource());
+                    }
+                    MavenProject project = new MavenProject(model);
+                    project.setFile(pom.toFile());
+                    PomExcluder excluder = new PomExcluder(new ExcludePattern(dir.toFile(), set), Arrays.asList(project));
+                    Map<String, List<InputLocation>> removed = excluder.excludeFromPom(project);
+                    start.await();
+                    for (int i = 0; i < 10; i++) {
+                        excluder.rewritePom(project, removed);
+                    }
+                    return project;
+                }));
+            }
+            start.countDown();
+            // each build keeps its own trimmed pom
+            Set<File> files = new HashSet<>();
+            for (Future<MavenProject> future : futures) {
+                MavenProject project = future.get();
+                byte[] content = Files.readAllBytes(project.getFile().toPath());
+                assertEquals(project.getContextValue(PomExcluder.POM_HASH), PomExcluder.hash(content));
+                files.add(project.getFile());
+            }
+            assertEquals(2, files.size());
+        } finally {
+            executor.shutdownNow();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(3, files.count());
+        }
+    }
+
+    @Test
+    public void testWritePermissions(@TempDir Path dir) throws Exception {
+        assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Path reference = dir.resolve("reference.xml");
+        Files.write(reference, new byte[0]);
+        Path written = dir.resolve(".exclude-pom-0123.xml");
+        PomExcluder.write(written, "<project/>".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Files.getPosixFilePermissions(reference), Files.getPosixFilePermissions(written));
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    public void testImportedBom(@TempDir Path dir) throws Exception {
+        Path bom = dir.resolve("bom").resolve("pom.xml");
+        Files.createDirectories(bom.getParent());
+        Files.copy(Paths.get("src/test/resources/pom-2.xml"), bom);
+        List<String> selectors = Files.readAllLines(Paths.get("src/test/resources/excludes-2.txt")).stream()
+                .map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toList());
+        InputSource source = new InputSource();
+        source.setLocation(bom.toString());
+        Model model;
+        try (InputStream is = Files.newInputStream(bom)) {
+            model = new MavenXpp3ReaderEx().read(is, false, source);
+        }
+        File reactor = dir.toFile();
+        File localRepository = dir.resolve("repository").toFile();
+        assertEquals(bom.toString(), ExcludeDependencyManagementImporter.getReactorBom(
+                model.getDependencyManagement(), reactor, localRepository));
+        assertEquals(null, ExcludeDependencyManagementImporter.getReactorBom(
+                model.getDependencyManagement(), reactor, bom.getParent().toFile()));
+        ExcludePattern exclusions = new ExcludePattern(reactor, selectors);
+        int before = model.getDependencyManagement().getDependencies().size();
+        List<Dependency> trimmed = ExcludeDependencyManagementImporter.trim(model.getDependencyManagement(), exclusions);
+        assertTrue(trimmed.size() < before);
+
+        // the imported entries are trimmed from the importer model but not from its pom
+        Path importerPom = dir.resolve("importer").resolve("pom.xml");
+        Files.createDirectories(importerPom.getParent());
+        Model importerModel = new Model();
+        importerModel.setGroupId("org.foo");
+        importerModel.setArtifactId("importer");
+        importerModel.setVersion("1.0");
+        importerModel.setDependencyManagement(model.getDependencyManagement());
+        MavenProject importer = new MavenProject(importerModel);
+        importer.setFile(importerPom.toFile());
+        Map<String, List<InputLocation>> removed = new PomExcluder(exclusions, Arrays.asList(importer))
+                .excludeFromPom(importer);
+        assertEquals(trimmed.size(), importerModel.getDependencyManagement().getDependencies().size());
+        assertTrue(removed.isEmpty());
+    }
+
+    @Test
+    public void testImportedBomSharedByImporters(@TempDir Path dir) throws Exception {
+        Path bom = dir.resolve("bom").resolve("pom.xml");
+        Files.createDirectories(bom.getParent());
+        Files.copy(Paths.get("src/test/resources/pom-2.xml"), bom);
+        List<String> selectors = Files.readAllLines(Paths.get("src/test/resources/excludes-2.txt")).stream()
+                .map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toList());
+        InputSource source = new InputSource();
+        source.setLocation(bom.toString());
+        Model model;
+        try (InputStream is = Files.newInputStream(bom)) {
+            model = new MavenXpp3ReaderEx().read(is, false, source);
+        }
+        MavenSession session = offlineSession(dir, dir.resolve("repository"));
+        ExcludePattern exclusions = new ExcludePattern(dir.toFile(), selectors);
+        session.getRepositorySession().getData().set(ExcludePattern.class, exclusions);
+        DefaultLegacySupport legacySupport = new DefaultLegacySupport();
+        legacySupport.setSession(session);
+        List<DependencyManagementImporter> importers = new ArrayList<>();
+        ExcludeDependencyManagementImporter importer = new ExcludeDependencyManagementImporter(legacySupport, importers);
+        importers.add(importer);
+        importers.add(new DefaultDependencyManagementImporter());
+
+        Model first = new Model();
+        Model second = new Model();
+        for (Model target : Arrays.asList(first, second)) {
+            importer.importManagement(target, Arrays.asList(model.getDependencyManagement().clone()),
+                    new DefaultModelBuildingRequest(), req -> { });
+        }
+
+        int expected = ExcludeDependencyManagementImporter.trim(model.getDependencyManagement(),
+                new ExcludePattern(dir.toFile(), selectors)).size();
+        assertTrue(expected < model.getDependencyManagement().getDependencies().size());
+        List<Dependency> firstDeps = first.getDependencyManagement().getDependencies();
+        List<Dependency> secondDeps = second.getDependencyManagement().getDependencies();
+        assertEquals(expected, firstDeps.size());
+        assertEquals(expected, secondDeps.size());
+        for (int i = 0; i < expected; i++) {
+            assertEquals(firstDeps.get(i).getManagementKey(), secondDeps.get(i).getManagementKey());
+            assertTrue(firstDeps.get(i) != secondDeps.get(i));
+        }
+        // the bom is only trimmed once
+        Map<?, ?> trimmed = (Map<?, ?>) session.getRepositorySession().getData().get(ExcludeDependencyManagementImporter.class);
+        assertEquals(1, trimmed.size());
+        ExcludePattern reference = new ExcludePattern(dir.toFile(), selectors);
+        ExcludeDependencyManagementImporter.trim(model.getDependencyManagement(), reference);
+        assertEquals(reference.getSelectors().stream().mapToLong(ExcludePattern.Selector::getHits).sum(),
+                exclusions.getSelectors().stream().mapToLong(ExcludePattern.Selector::getHits).sum());
+    }
+
+    @Test
+    public void testPathSelectors() {
+        File root = new File("/work/reactor");
+        ExcludePattern exclusions = new ExcludePattern(root, Arrays.asList(
+                "components/**/*-deployment", "extensions/*/runtime", "module-1", "module-2/pom.xml"));
+        assertTrue(exclusions.isMatchingProject(project(root, "components/foo-deployment")));
+        assertTrue(exclusions.isMatchingProject(project(root, "components/a/b/bar-deployment")));
+        assertFalse(exclusions.isMatchingProject(project(root, "components/a/bar")));
+        assertTrue(exclusions.isMatchingProject(project(root, "extensions/foo/runtime")));
+        assertFalse(exclusions.isMatchingProject(project(root, "extensions/foo/bar/runtime")));
+        assertTrue(exclusions.isMatchingProject(project(root, "module-1")));
+        assertTrue(exclusions.isMatchingProject(project(root, "module-2")));
+        assertFalse(exclusions.isMatchingProject(project(root, "module-3")));
+    }
+
+    @Test
+    public void testQualifiedSelectors() {
+        ExcludePattern exclusions = new ExcludePattern(new File("."), Arrays.asList(
+                "org.harness:*@test", "*:*:test-jar", ":*:*:tests", "org.foo:bar"));
+        assertTrue(exclusions.isMatchingArtifact("org.harness", "heavy", null, null, "test"));
+        assertFalse(exclusions.isMatchingArtifact("org.harness", "heavy", null, null, "compile"));
+        assertFalse(exclusions.isMatchingArtifact("org.harness", "heavy"));
+        assertTrue(exclusions.isMatchingArtifact("org.any", "module", "test-jar", "tests", "test"));
+        assertTrue(exclusions.isMatchingArtifact("org.any", "module", "jar", "tests", null));
+        assertFalse(exclusions.isMatchingArtifact("org.any", "module", "jar", null, null));
+        assertTrue(exclusions.isMatchingArtifact("org.foo", "bar", "pom", null, "import"));
+        assertTrue(exclusions.isMatchingArtifact("org.foo", "bar"));
+        assertFalse(exclusions.isMatchingProject(project(new File("/work"), "module")));
+    }
+
+    @Test
+    public void testAttributeSelectors() {
+        File root = new File("/work/reactor");
+        MavenProject parent = project(root, "parent");
+        parent.getModel().setPackaging("pom");
+        MavenProject heavy = project(root, "heavy");
+        heavy.getModel().addProperty("skipHeavy", "true");
+        MavenProject plugin = project(root, "plugin");
+        Plugin build = new Plugin();
+        build.setGroupId("io.quarkus");
+        build.setArtifactId("quarkus-maven-plugin");
+        plugin.getModel().setBuild(new Build());
+        plugin.getModel().getBuild().addPlugin(build);
+        MavenProject other = project(root, "other");
+        ExcludePattern exclusions = new ExcludePattern(root, Arrays.asList(
+                "[packaging=pom]", "[property:skipHeavy=true]", "[plugin=io.quarkus:quarkus-maven-plugin,packaging=jar]"));
+        exclusions.indexProjects(Arrays.asList(parent, heavy, plugin, other));
+        assertTrue(exclusions.isMatchingProject(parent));
+        assertTrue(exclusions.isMatchingProject(heavy));
+        assertTrue(exclusions.isMatchingProject(plugin));
+        assertFalse(exclusions.isMatchingProject(other));
+    }
+
+    @Test
+    public void testSubstitution() {
+        File root = new File("/work/reactor");
+        MavenProject module = project(root, "module");
+        ExcludePattern exclusions = new ExcludePattern(root, Arrays.asList("org.foo:module"));
+        String id = exclusions.getId();
+        exclusions.substitute(module);
+        assertTrue(exclusions.isMatchingProject(module));
+        assertFalse(exclusions.isMatchingArtifact("org.foo", "module"));
+        assertFalse(exclusions.isMatchingArtifact("org.foo", "module", "jar", null, "compile"));
+        assertFalse(id.equals(exclusions.getId()));
+    }
+
+    @Test
+    public void testSharding() {
+        File root = new File("/work/reactor");
+        MavenProject a = project(root, "a");
+        MavenProject b = project(root, "b");
+        MavenProject c = project(root, "c");
+        MavenProject d = project(root, "d");
+        List<MavenProject> projects = Arrays.asList(a, b, c, d);
+        // d depends on c
+        ProjectDependencyGraph graph = new ProjectDependencyGraph() {
+            public List<MavenProject> getAllProjects() {
+                return projects;
+            }
+            public List<MavenProject> getSortedProjects() {
+                return projects;
+            }
+            public List<MavenProject> getDownstreamProjects(MavenProject project, boolean transitive) {
+                return project == c ? Arrays.asList(d) : new ArrayList<>();
+            }
+            public List<MavenProject> getUpstreamProjects(MavenProject project, boolean transitive) {
+                return project == d ? Arrays.asList(c) : new ArrayList<>();
+            }
+        };
+        Map<String, Long> durations = new HashMap<>();
+        durations.put("org.foo:a", 50L);
+        durations.put("org.foo:b", 40L);
+        durations.put("org.foo:c", 30L);
+        durations.put("org.foo:d", 20L);
+        Set<MavenProject> shard1 = new ReactorSharding("1/2").select(projects, graph, durations);
+        Set<MavenProject> shard2 = new ReactorSharding("2/2").select(projects, graph, durations);
+        assertEquals(new HashSet<>(Arrays.asList(a)), shard1);
+        assertEquals(new HashSet<>(Arrays.asList(b, c, d)), shard2);
+    }
+
+    @Test
+    public void testRecordDurations(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve(".mvn/exclude-durations.properties");
+        MavenProject project = project(dir.toFile(), "module");
+
+        // normal builds do not touch the source tree
+        new ExcludeParticipant().afterSessionEnd(built(dir, new Properties(), project));
+        assertFalse(Files.exists(file));
+        assertEquals("none", ReactorSharding.checksum(file));
+
+        Properties props = new Properties();
+        props.setProperty("exclude.shard.record", "true");
+        new ExcludeParticipant().afterSessionEnd(built(dir, props, project));
+        assertEquals(Long.valueOf(100), ReactorSharding.loadDurations(file).get("org.foo:module"));
+        String checksum = ReactorSharding.checksum(file);
+        assertEquals(12, checksum.length());
+
+        // the same durations always give the same checksum
+        ReactorSharding.saveDurations(file, ReactorSharding.loadDurations(file));
+        assertEquals(checksum, ReactorSharding.checksum(file));
+    }
+
+    private MavenSession built(Path dir, Properties props, MavenProject project) {
+        MavenSession session = session(dir, props);
+        session.getRepositorySession().getData().set(ExcludePattern.class,
+                new ExcludePattern(dir.toFile(), Arrays.asList("org.foo:module")));
+        session.setProjects(Arrays.asList(project));
+        session.getResult().addBuildSummary(new BuildSuccess(project, 100));
+        return session;
+    }
+
+    @Test
+    public void testExclusionService(@TempDir Path dir) {
+        MavenSession session = session(dir, new Properties());
+        ExclusionService service = new ExclusionService(session);
+        assertFalse(service.isActive());
+        assertFalse(service.isExcluded("org.foo", "module"));
+
+        MavenProject module = project(dir.toFile(), "module");
+        MavenProject other = project(dir.toFile(), "other");
+        MavenProject sharded = project(dir.toFile(), "sharded");
+        ExcludePattern exclusions = new ExcludePattern(dir.toFile(), Arrays.asList("org.foo:module", "org.foo:lib"));
+        session.getRepositorySession().getData().set(ExcludePattern.class, exclusions);
+        // results are not cached before the projects exclusions are known
+        assertFalse(service.isExcluded("org.foo", "sharded"));
+        exclusions.excludeProjects(Arrays.asList(sharded), "shard 1/2");
+        ExclusionService.setPlan(session, new ExclusionService.Plan(Arrays.asList(module, sharded), new HashMap<>(), null));
+        assertTrue(service.isActive());
+        assertTrue(service.isExcluded("org.foo", "module"));
+        assertTrue(service.isExcluded("org.foo", "sharded"));
+        assertFalse(service.isExcluded("org.foo", "other"));
+        assertTrue(service.isExcluded(module));
+        assertFalse(service.isExcluded(other));
+        assertEquals(Arrays.asList(module, sharded), service.getExcludedProjects());
+        assertTrue(service.getRemovals(other).isEmpty());
+
+        // consumers can not change the exclusions, but see the ones applied by the build
+        ExcludePattern view = service.getExcludePattern();
+        assertThrows(UnsupportedOperationException.class, () -> view.excludeProjects(Arrays.asList(other), "test"));
+        assertThrows(UnsupportedOperationException.class, () -> view.substitute(other));
+        assertThrows(UnsupportedOperationException.class, () -> view.indexProjects(Arrays.asList(other)));
+        assertFalse(view.isMatchingProject(other));
+        assertTrue(view.isMatchingArtifact("org.foo", "lib"));
+        exclusions.excludeProjects(Arrays.asList(other), "test");
+        exclusions.substitute(project(dir.toFile(), "lib"));
+        assertTrue(view.isMatchingProject(other));
+        assertFalse(view.isMatchingArtifact("org.foo", "lib"));
+        assertEquals(exclusions.getId(), view.getId());
+    }
+
+    @Test
+    public void testLocalRepositoryCheck(@TempDir Path dir) throws Exception {
+        Path repository = dir.resolve("repository");
+        MavenSession session = offlineSession(dir, repository);
+        MavenProject project = project(dir.toFile(), "module");
+        project.getModel().addDependency(modelDep("org.ext:lib"));
+        Dependency range = modelDep("org.ext:ranged");
+        range.setVersion("[1.0,2.0)");
+        project.getModel().addDependency(range);
+        LocalRepositoryCheck check = new LocalRepositoryCheck(session.getRepositorySession(),
+                new ExcludePattern(dir.toFile(), Arrays.asList("org.foo:other")), Arrays.asList(project));
+
+        // only metadata, or versions outside of the range, are not enough
+        Files.createDirectories(repository.resolve("org/ext/lib/1.0"));
+        Files.write(repository.resolve("org/ext/lib/1.0/_remote.repositories"), new byte[0]);
+        Files.createDirectories(repository.resolve("org/ext/ranged/2.0"));
+        Files.write(repository.resolve("org/ext/ranged/maven-metadata-local.xml"), new byte[0]);
+        Files.write(repository.resolve("org/ext/ranged/2.0/ranged-2.0.jar"), new byte[0]);
+        Files.createDirectories(repository.resolve("org/ext/ranged/1.5"));
+        Files.write(repository.resolve("org/ext/ranged/1.5/ranged-1.5.pom"), new byte[0]);
+        assertEquals(Arrays.asList("org.ext:lib:jar:1.0", "org.ext:ranged:jar:[1.0,2.0)"),
+                check.getMissingDependencies(project));
+
+        check = new LocalRepositoryCheck(session.getRepositorySession(),
+                new ExcludePattern(dir.toFile(), Arrays.asList("org.foo:other")), Arrays.asList(project));
+        Files.write(repository.resolve("org/ext/lib/1.0/lib-1.0.jar"), new byte[0]);
+        Files.write(repository.resolve("org/ext/ranged/1.5/ranged-1.5.jar"), new byte[0]);
+        assertTrue(check.getMissingDependencies(project).isEmpty());
+        assertTrue(check.check(Arrays.asList(project)).isEmpty());
+    }
+
+    @Test
+    public void testExcludeUnavailable(@TempDir Path dir) throws Exception {
+        Files.createDirectories(dir.resolve(".mvn"));
+        Files.write(dir.resolve(".mvn/excludes.txt"), Arrays.asList("org.foo:unused"));
+        Properties props = new Properties();
+        props.setProperty("exclude.offline", "true");
+        MavenSession session = offlineSession(dir, dir.resolve("repository"), props);
+        MavenProject a = project(dir.toFile(), "a");
+        a.getModel().addDependency(modelDep("org.ext:missing"));
+        MavenProject b = project(dir.toFile(), "b");
+        b.getModel().addDependency(modelDep("org.foo:a"));
+        MavenProject c = project(dir.toFile(), "c");
+        List<MavenProject> projects = Arrays.asList(a, b, c);
+        Map<MavenProject, List<MavenProject>> upstreams = new HashMap<>();
+        upstreams.put(b, Arrays.asList(a));
+        session.setProjects(projects);
+        session.setAllProjects(projects);
+        session.setProjectDependencyGraph(graph(projects, upstreams));
+
+        new ExcludeParticipant().afterProjectsRead(session);
+        // b is excluded because it depends on a, which can not be built
+        assertEquals(Arrays.asList(c), session.getProjects());
+        assertEquals(Arrays.asList(a, b), new ExclusionService(session).getExcludedProjects());
+    }
+
+    @Test
+    public void testTransitiveSubstitution(@TempDir Path dir) throws Exception {
+        Files.createDirectories(dir.resolve(".mvn"));
+        Files.write(dir.resolve(".mvn/excludes.txt"), Arrays.asList("org.foo:y", "org.foo:z"));
+        Path repository = dir.resolve("repository");
+        for (String id : Arrays.asList("y", "z")) {
+            Files.createDirectories(repository.resolve("org/foo/" + id + "/1.0"));
+            Files.write(repository.resolve("org/foo/" + id + "/1.0/" + id + "-1.0.jar"), new byte[0]);
+        }
+        Properties props = new Properties();
+        props.setProperty("exclude.substitute", "true");
+        MavenSession session = offlineSession(dir, repository, props);
+        MavenProject x = project(dir.toFile(), "x");
+        x.getModel().addDependency(modelDep("org.foo:y"));
+        MavenProject y = project(dir.toFile(), "y");
+        y.getModel().addDependency(modelDep("org.foo:z"));
+        MavenProject z = project(dir.toFile(), "z");
+        List<MavenProject> projects = Arrays.asList(x, y, z);
+        for (MavenProject project : projects) {
+            project.setArtifact(new org.apache.maven.artifact.DefaultArtifact("org.foo", project.getArtifactId(),
+                    "1.0", null, "jar", null, new DefaultArtifactHandler("jar")));
+        }
+        Map<MavenProject, List<MavenProject>> upstreams = new HashMap<>();
+        upstreams.put(x, Arrays.asList(y));
+        upstreams.put(y, Arrays.asList(z));
+        session.setProjects(projects);
+        session.setAllProjects(projects);
+        session.setProjectDependencyGraph(graph(projects, upstreams));
+
+        new ExcludeParticipant().afterProjectsRead(session);
+        // the prebuilt y depends on z, which has to be substituted too
+        ExcludePattern exclusions = new ExclusionService(session).getExcludePattern();
+        assertEquals(Arrays.asList(x), session.getProjects());
+        assertTrue(exclusions.isSubstituted("org.foo", "y"));
+        assertTrue(exclusions.isSubstituted("org.foo", "z"));
+    }
+
+    private MavenSession offlineSession(Path dir, Path repository) throws Exception {
+        return offlineSession(dir, repository, new Properties());
+    }
+
+    private MavenSession offlineSession(Path dir, Path repository, Properties props) throws Exception {
+        MavenSession session = session(dir, props, "compile");
+        DefaultRepositorySystemSession repoSession = (DefaultRepositorySystemSession) session.getRepositorySession();
+        repoSession.setLocalRepositoryManager(new SimpleLocalRepositoryManagerFactory()
+                .newInstance(repoSession, new LocalRepository(repository.toFile())));
+        return session;
+    }
+
+    @Test
+    public void testGraphCacheRoundTrip(@TempDir Path dir) {
+        MavenProject project = project(dir.toFile(), "app");
+        DependencyGraphCache cache = new DependencyGraphCache(dir.resolve("cache"),
+                new ExcludePattern(dir.toFile(), Arrays.asList("org.foo:bar")), Arrays.asList(project), null, new Properties());
+        RemoteRepository central = new RemoteRepository.Builder("central", "default", "https://repo.maven.apache.org/maven2").build();
+        RemoteRepository custom = new RemoteRepository.Builder("custom", "default", "https://repo.example.com/maven 2").build();
+        DefaultDependencyNode root = new DefaultDependencyNode(new DefaultArtifact("org.foo:app:1.0"));
+        root.setRepositories(Arrays.asList(central));
+        Map<String, String> systemProps = new HashMap<>();
+        systemProps.put(ArtifactProperties.TYPE, "jar");
+        systemProps.put(ArtifactProperties.LOCAL_PATH, "/opt/jdk lib/tools.jar");
+        DefaultDependencyNode system = new DefaultDependencyNode(new org.eclipse.aether.graph.Dependency(
+                new DefaultArtifact("com.sun", "tools", "", "jar", "1.8", systemProps, (File) null), "system"));
+        DefaultDependencyNode lib = new DefaultDependencyNode(new org.eclipse.aether.graph.Dependency(
+                new DefaultArtifact("org.ext", "lib", "tests", "jar", "2.0"), "test", true));
+        lib.setRepositories(Arrays.asList(central, custom));
+        DefaultDependencyNode transitive = new DefaultDependencyNode(dep("org.ext:transitive"));
+        transitive.setRepositories(Arrays.asList(custom));
+        lib.getChildren().add(transitive);
+        root.getChildren().add(system);
+        root.getChildren().add(lib);
+
+        String key = cache.getKey(project);
+        assertEquals(null, cache.load(key, new DefaultRepositorySystemSession(), project));
+        cache.store(key, root);
+        DependencyNode loaded = cache.load(key, new DefaultRepositorySystemSession(), project);
+        assertEquals(dump(root), dump(loaded));
+        DependencyNode loadedSystem = loaded.getChildren().get(0);
+        assertEquals("/opt/jdk lib/tools.jar", loadedSystem.getArtifact().getProperty(ArtifactProperties.LOCAL_PATH, null));
+        assertEquals("system", loadedSystem.getDependency().getScope());
+        assertTrue(loaded.getChildren().get(1).getDependency().isOptional());
+        assertEquals("https://repo.example.com/maven 2",
+                loaded.getChildren().get(1).getChildren().get(0).getRepositories().get(0).getUrl());
+    }
+
+    @Test
+    public void testGraphCacheInvalidation(@TempDir Path dir) {
+        File root = dir.toFile();
+        MavenProject a = project(root, "a");
+        MavenProject b = project(root, "b");
+        MavenProject c = project(root, "c");
+        List<MavenProject> projects = Arrays.asList(a, b, c);
+        Map<MavenProject, List<MavenProject>> upstreams = new HashMap<>();
+        upstreams.put(b, Arrays.asList(a));
+        ProjectDependencyGraph graph = graph(projects, upstreams);
+        ExcludePattern exclusions = new ExcludePattern(root, Arrays.asList("org.foo:bar"));
+        DependencyGraphCache cache = new DependencyGraphCache(dir, exclusions, projects, graph, new Properties());
+        String keyA = cache.getKey(a);
+        String keyB = cache.getKey(b);
+        String keyC = cache.getKey(c);
+
+        // the keys only depend on the models, not on whether the trimmed pom has been written
+        b.setContextValue(PomExcluder.POM_HASH, "0123");
+        assertEquals(keyB, new DependencyGraphCache(dir, exclusions, projects, graph, new Properties()).getKey(b));
+
+        // changing an unrelated project does not invalidate the other graphs
+        c.getModel().addDependency(modelDep("org.ext:lib"));
+        cache = new DependencyGraphCache(dir, exclusions, projects, graph, new Properties());
+        assertEquals(keyA, cache.getKey(a));
+        assertEquals(keyB, cache.getKey(b));
+        assertFalse(keyC.equals(cache.getKey(c)));
+
+        // changing an upstream project invalidates the downstream graphs
+        a.getModel().addDependency(modelDep("org.ext:lib"));
+        cache = new DependencyGraphCache(dir, exclusions, projects, graph, new Properties());
+        assertFalse(keyA.equals(cache.getKey(a)));
+        assertFalse(keyB.equals(cache.getKey(b)));
+
+        // as do the exclusions and the user properties
+        Properties props = new Properties();
+        props.setProperty("skipTests", "true");
+        String current = cache.getKey(c);
+        assertFalse(current.equals(new DependencyGraphCache(dir, exclusions, projects, graph, props).getKey(c)));
+        assertFalse(current.equals(new DependencyGraphCache(dir, new ExcludePattern(root, Arrays.asList("org.foo:baz")),
+                projects, graph, new Properties()).getKey(c)));
+    }
+
+    private String dump(DependencyNode node) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(node.getArtifact()).append(new TreeMap<>(node.getArtifact().getProperties()))
+                .append(node.getDependency() != null ? node.getDependency().getScope() : "")
+                .append(node.getRepositories()).append('[');
+        node.getChildren().forEach(child -> sb.append(dump(child)));
+        return sb.append(']').toString();
+    }
+
+    @Test
+    public void testLazyMaterialization(@TempDir Path dir) throws Exception {
+        // a local build does not write the trimmed poms, they are written on demand
+        MavenSession session = simpleReactor(dir.resolve("test"), "clean", "test");
+        MavenProject root = session.getProjects().get(0);
+        assertEquals("pom.xml", root.getFile().getName());
+        assertEquals(Arrays.asList("pom.xml"), trimmedPoms(root));
+        assertEquals(Arrays.asList("module-2"), root.getModules());
+        File file = new ExclusionService(session).materialize(root);
+        assertEquals(root.getFile(), file);
+        assertTrue(file.getName().startsWith(".exclude-pom-"));
+        assertFalse(Files.readString(file.toPath()).contains("<module>module-1</module>"));
+
+        // plugins reading the pom get it written right before they run
+        session = simpleReactor(dir.resolve("package"), "package");
+        root = session.getProjects().get(0);
+        PomMaterializer materializer = new PomMaterializer();
+        materializer.beforeMojoExecution(mojoEvent(session, root, "maven-compiler-plugin"));
+        assertEquals("pom.xml", root.getFile().getName());
+        materializer.beforeMojoExecution(mojoEvent(session, root, "maven-jar-plugin"));
+        assertTrue(root.getFile().getName().startsWith(".exclude-pom-"));
+        assertEquals(2, trimmedPoms(root).size());
+
+        // builds publishing the poms write them upfront
+        session = simpleReactor(dir.resolve("install"), "install");
+        root = session.getProjects().get(0);
+        assertTrue(root.getFile().getName().startsWith(".exclude-pom-"));
+    }
+
+    @Test
+    public void testUpstreamMaterialization(@TempDir Path dir) throws Exception {
+        // the reactor reader gives the pom file of upstream projects to the dependency collection
+        MavenSession session = simpleReactor(dir, true, "test");
+        MavenProject parent = session.getProjects().get(0);
+        MavenProject module = session.getProjects().get(1);
+        assertEquals("module-2", module.getArtifactId());
+        assertFalse(new ExclusionService(session).getRemovals(module).isEmpty());
+        assertTrue(parent.getFile().getName().startsWith(".exclude-pom-"));
+        assertFalse(Files.readString(parent.getFile().toPath()).contains("<artifactId>module-1</artifactId>"));
+        // projects without downstream projects are still written on demand
+        assertEquals("pom.xml", module.getFile().getName());
+    }
+
+    private MavenSession simpleReactor(Path dir, String... goals) throws Exception {
+        return simpleReactor(dir, false, goals);
+    }
+
+    private MavenSession simpleReactor(Path dir, boolean parentEdges, String... goals) throws Exception {
+        List<MavenProject> projects = new ArrayList<>();
+        for (String pom : Arrays.asList("pom.xml", "module-1/pom.xml", "module-2/pom.xml")) {
+            Path target = dir.resolve(pom);
+            Files.createDirectories(target.getParent());
+            Files.copy(Paths.get("src/it/projects/simple").resolve(pom), target);
+            InputSource source = new InputSource();
+            source.setLocation(target.toString());
+            try (InputStream is = Files.newInputStream(target)) {
+                MavenProject project = new MavenProject(new MavenXpp3ReaderEx().read(is, false, source));
+                project.setFile(target.toFile());
+                projects.add(project);
+            }
+        }
+        Files.createDirectories(dir.resolve(".mvn"));
+        Files.write(dir.resolve(".mvn/excludes.txt"), Arrays.asList(":module-1"));
+        MavenSession session = session(dir, new Properties(), goals);
+        session.setProjects(projects);
+        session.setAllProjects(projects);
+        Map<MavenProject, List<MavenProject>> upstreams = new HashMap<>();
+        if (parentEdges) {
+            // the modules depend on their parent
+            upstreams.put(projects.get(1), Arrays.asList(projects.get(0)));
+            upstreams.put(projects.get(2), Arrays.asList(projects.get(0)));
+        }
+        session.setProjectDependencyGraph(graph(projects, upstreams));
+        new ExcludeParticipant().afterProjectsRead(session);
+        return session;
+    }
+
+    private List<String> trimmedPoms(MavenProject project) throws Exception {
+        try (Stream<Path> files = Files.list(project.getBasedir().toPath())) {
+            return files.map(p -> p.getFileName().toString()).filter(n -> n.endsWith(".xml"))
+                    .sorted().collect(Collectors.toList());
+        }
+    }
+
+    private MojoExecutionEvent mojoEvent(MavenSession session, MavenProject project, String artifactId) {
+        Plugin plugin = new Plugin();
+        plugin.setGroupId("org.apache.maven.plugins");
+        plugin.setArtifactId(artifactId);
+        return new MojoExecutionEvent(session, project, new MojoExecution(plugin, "goal", "default"), null);
+    }
+
+    @Test
+    public void testReactorStats() {
+        File root = new File("/work/reactor");
+        MavenProject parent = project(root, "parent");
+        parent.getModel().setModules(Arrays.asList("api", "impl", "app", "tools"));
+        parent.getModel().setDependencyManagement(new DependencyManagement());
+        parent.getModel().getDependencyManagement().addDependency(modelDep("org.foo:api"));
+        parent.getModel().getDependencyManagement().addDependency(modelDep("org.foo:impl"));
+        MavenProject api = project(root, "api");
+        MavenProject impl = project(root, "impl");
+        impl.getModel().addDependency(modelDep("org.foo:api"));
+        MavenProject app = project(root, "app");
+        app.getModel().addDependency(modelDep("org.foo:impl"));
+        app.getModel().addDependency(modelDep("org.foo:api"));
+        MavenProject tools = project(root, "tools");
+        tools.getModel().addDependency(modelDep("org.foo:api"));
+        Map<MavenProject, List<MavenProject>> upstreams = new HashMap<>();
+        // api <- impl <- app, api <- app, api <- tools
+        upstreams.put(impl, Arrays.asList(api));
+        upstreams.put(app, Arrays.asList(impl, api));
+        upstreams.put(tools, Arrays.asList(api));
+        ProjectDependencyGraph graph = graph(Arrays.asList(parent, api, impl, app, tools), upstreams);
+
+        ReactorStats before = ReactorStats.compute(Arrays.asList(parent, api, impl, app, tools), graph);
+        assertEquals(5, before.projects);
+        assertEquals(4, before.modules);
+        assertEquals(4, before.dependencies);
+        assertEquals(2, before.managedDependencies);
+        assertEquals(4, before.edges);
+        assertEquals(3, before.criticalPath);
+
+        // edges to projects outside of the given ones are ignored
+        ReactorStats after = ReactorStats.compute(Arrays.asList(parent, api, app, tools), graph);
+        assertEquals(4, after.projects);
+        assertEquals(2, after.edges);
+        assertEquals(2, after.criticalPath);
+        assertTrue(ReactorStats.toSummary(before, after).contains("critical path 3 -> 2"));
+        assertTrue(ReactorStats.toJson(before, after).contains("\"edges\": { \"before\": 4, \"after\": 2, \"removed\": 2 }"));
+    }
+
+    @Test
+    public void testProfiles(@TempDir Path dir) throws Exception {
+        Files.createDirectories(dir.resolve(".mvn/excludes.d"));
+        Files.write(dir.resolve(".mvn/excludes.txt"), Arrays.asList(":default"));
+        Files.write(dir.resolve(".mvn/excludes.d/fast.txt"), Arrays.asList(":slow", ":default"));
+        Files.write(dir.resolve(".mvn/excludes.d/offline.txt"), Arrays.asList(":remote"));
+        Files.write(dir.resolve("outside.txt"), Arrays.asList(":outside"));
+
+        assertEquals(Arrays.asList(":default"), selectors(dir, null));
+        assertEquals(Arrays.asList(":default", ":slow"), selectors(dir, "fast"));
+        assertEquals(Arrays.asList(":default", ":slow", ":remote"), selectors(dir, "fast, offline"));
+        MavenExecutionException e = assertThrows(MavenExecutionException.class, () -> selectors(dir, "missing"));
+        assertTrue(e.getMessage().contains("Unknown exclusion profile 'missing'"));
+        for (String profile : Arrays.asList("../../outside", "sub/fast", "sub\\fast", "..")) {
+            e = assertThrows(MavenExecutionException.class, () -> selectors(dir, profile));
+            assertTrue(e.getMessage().contains("Invalid exclusion profile name"));
+        }
+    }
+
+    @Test
+    public void testDependencySelectorInstalled(@TempDir Path dir) throws Exception {
+        Files.createDirectories(dir.resolve(".mvn"));
+        Files.write(dir.resolve(".mvn/excludes.txt"), Arrays.asList("org.foo:bar"));
+        ExcludePattern exclusions = new ExcludePattern(dir.toFile(), Arrays.asList("org.foo:bar"));
+        // build extensions are not notified of the session start
+        assertFalse(ExcludeParticipant.isDependencySelectorInstalled(session(dir, new Properties()), exclusions));
+        MavenSession session = session(dir, new Properties());
+        new ExcludeParticipant().afterSessionStart(session);
+        assertTrue(ExcludeParticipant.isDependencySelectorInstalled(session, exclusions));
+        ExcludePattern paths = new ExcludePattern(dir.toFile(), Arrays.asList("module"));
+        assertTrue(ExcludeParticipant.isDependencySelectorInstalled(session(dir, new Properties()), paths));
+    }
+
+    private List<String> selectors(Path dir, String profiles) throws MavenExecutionException {
+        Properties props = new Properties();
+        if (profiles != null) {
+            props.setProperty("exclude.profile", profiles);
+        }
+        MavenSession session = session(dir, props);
+        new ExcludeParticipant().afterSessionStart(session);
+        ExcludePattern exclusions = (ExcludePattern) session.getRepositorySession().getData().get(ExcludePattern.class);
+        return exclusions.getSelectors().stream().map(ExcludePattern.Selector::getText).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testInvalidDeadSelectorsThreshold(@TempDir Path dir) throws Exception {
+        Properties props = new Properties();
+        props.setProperty("exclude.deadSelectors.threshold", "ten");
+        MavenSession session = session(dir, props);
+        session.getRepositorySession().getData().set(ExcludePattern.class,
+                new ExcludePattern(dir.toFile(), Arrays.asList("org.foo:bar")));
+        MavenExecutionException e = assertThrows(MavenExecutionException.class,
+                () -> new ExcludeParticipant().afterSessionEnd(session));
+        assertTrue(e.getMessage().contains("exclude.deadSelectors.threshold"));
+    }
+
+    @Test
+    public void testGraphCacheDirectory(@TempDir Path dir) {
+        Properties props = new Properties();
+        props.setProperty("user.home", dir.resolve("home").toString());
+        assertEquals(dir.resolve("home/.m2/exclude-cache"), ExcludeParticipant.getGraphCacheDirectory(session(dir, props)));
+        props.setProperty("exclude.graphCache.dir", "target/graphs");
+        assertEquals(dir.resolve("target/graphs"), ExcludeParticipant.getGraphCacheDirectory(session(dir, props)));
+    }
+
+    @Test
+    public void testDeadSelectorsWithCachedGraphs(@TempDir Path dir) throws Exception {
+        Properties props = new Properties();
+        props.setProperty("exclude.deadSelectors.threshold", "0");
+        MavenSession session = session(dir, props);
+        ExcludePattern exclusions = new ExcludePattern(dir.toFile(), Arrays.asList("org.foo:bar"));
+        session.getRepositorySession().getData().set(ExcludePattern.class, exclusions);
+        MavenProject project = project(dir.toFile(), "app");
+        DependencyGraphCache cache = new DependencyGraphCache(dir.resolve("cache"), exclusions,
+                Arrays.asList(project), null, new Properties());
+        session.getRepositorySession().getData().set(DependencyGraphCache.class, cache);
+        assertThrows(MavenExecutionException.class, () -> new ExcludeParticipant().afterSessionEnd(session));
+
+        // the selector may have been hit when the cached graph was collected
+        String key = cache.getKey(project);
+        cache.store(key, new DefaultDependencyNode(new DefaultArtifact("org.foo:app:1.0")));
+        assertNotNull(cache.load(key, session.getRepositorySession(), project));
+        assertTrue(cache.hasHits());
+        new ExcludeParticipant().afterSessionEnd(session);
+    }
+
+    private MavenProject project(File root, String path) {
+        Model model = new Model();
+        model.setGroupId("org.foo");
+        model.setArtifactId(path.replace('/', '-'));
+        model.setVersion("1.0");
+        MavenProject project = new MavenProject(model);
+        project.setFile(new File(new File(root, path), "pom.xml"));
+        return project;
+    }
+
+    private MavenSession session(Path root, Properties userProperties, String... goals) {
+        DefaultMavenExecutionRequest request = new DefaultMavenExecutionRequest();
+        request.setMultiModuleProjectDirectory(root.toFile());
+        request.setBaseDirectory(root.toFile());
+        request.setUserProperties(userProperties);
+        request.setSystemProperties(new Properties());
+        request.setGoals(Arrays.asList(goals));
+        DefaultRepositorySystemSession repoSession = new DefaultRepositorySystemSession();
+        return new MavenSession(null, repoSession, request, new DefaultMavenExecutionResult());
+    }
+
+    private ProjectDependencyGraph graph(List<MavenProject> projects, Map<MavenProject, List<MavenProject>> upstreams) {
+        return new ProjectDependencyGraph() {
+            public List<MavenProject> getAllProjects() {
+                return projects;
+            }
+            public List<MavenProject> getSortedProjects() {
+                return projects;
+            }
+            public List<MavenProject> getDownstreamProjects(MavenProject project, boolean transitive) {
+                List<MavenProject> downstreams = new ArrayList<>();
+                for (MavenProject p : projects) {
+                    if (getUpstreamProjects(p, transitive).contains(project)) {
+                        downstreams.add(p);
+                    }
+                }
+                return downstreams;
+            }
+            public List<MavenProject> getUpstreamProjects(MavenProject project, boolean transitive) {
+                Set<MavenProject> result = new LinkedHashSet<>(upstreams.getOrDefault(project, new ArrayList<>()));
+                if (transitive) {
+                    for (MavenProject up : new ArrayList<>(result)) {
+                        result.addAll(getUpstreamProjects(up, true));
+                    }
+                }
+                return new ArrayList<>(result);
+            }
+        };
+    }
+
+    private Dependency modelDep(String ga) {
+        Dependency dependency = new Dependency();
+        dependency.setGroupId(ga.substring(0, ga.indexOf(':')));
+        dependency.setArtifactId(ga.substring(ga.indexOf(':') + 1));
+        dependency.setVersion("1.0");
+        return dependency;
+    }
+
+    private org.eclipse.aether.graph.Dependency dep(String ga) {
+        return new org.eclipse.aether.graph.Dependency(new DefaultArtifact(ga + ":1.0"), "compile");
+    }
+
     private InputLocation loc(int line, int col) {
         return new InputLocation(line, col);
     }